@@ -29,6 +29,32 @@ public class Main extends Application {
     }
 
     public static File DB_FILE = new File("megatagDB.json");
+    public static File DB_BINARY_FILE = new File("megatagDB.bin");
+    public static File DB_SHARD_DIR = new File("megatagDB.shards");
+    public static File THUMB_FILE = new File("megatagThumbs.bin");
+    public static File ROOTS_FILE = new File("megatagRoots.json");
+    public static File JOURNAL_FILE = new File("megatagDB.journal");
+
+    // Save the catalog in the compact binary format, rather than as JSON
+    public static final boolean BINARY_CATALOG = Boolean.getBoolean("megatag.binaryCatalog");
+
+    // Compress the catalog at this java.util.zip.Deflater level when saving,
+    // or not if 0.  Level 1 makes the JSON catalog about 7 times smaller
+    // without slowing loading; higher levels make saving much slower for
+    // little gain (see model.CatalogBenchmark).
+    public static final int CATALOG_COMPRESSION = Integer.getInteger("megatag.catalogCompression", 1);
+
+    // Save the catalog in shards that are written and read in parallel, in
+    // the DB_SHARD_DIR directory.  They are JSON or binary, as above.
+    public static final boolean SHARDED_CATALOG = Boolean.getBoolean("megatag.shardedCatalog");
+
+    // The file the catalog is saved to, or directory if it is sharded
+    public static File getCatalogFile() {
+        if (SHARDED_CATALOG) {
+            return DB_SHARD_DIR;
+        }
+        return BINARY_CATALOG ? DB_BINARY_FILE : DB_FILE;
+    }
 
     @Override
     public void start(Stage primaryStage) {
@@ -38,11 +64,21 @@ public class Main extends Application {
         String appData = System.getenv("APPDATA");
         if (appData != null) {
             DB_FILE = new File(appData, DB_FILE.toString());
+            DB_BINARY_FILE = new File(appData, DB_BINARY_FILE.toString());
+            DB_SHARD_DIR = new File(appData, DB_SHARD_DIR.toString());
+            THUMB_FILE = new File(appData, THUMB_FILE.toString());
+            ROOTS_FILE = new File(appData, ROOTS_FILE.toString());
+            JOURNAL_FILE = new File(appData, JOURNAL_FILE.toString());
         }
         // 2. Otherwise... home directory
         else {
             appData = System.getProperty("user.home");
             DB_FILE = new File(appData, DB_FILE.toString());
+            DB_BINARY_FILE = new File(appData, DB_BINARY_FILE.toString());
+            DB_SHARD_DIR = new File(appData, DB_SHARD_DIR.toString());
+            THUMB_FILE = new File(appData, THUMB_FILE.toString());
+            ROOTS_FILE = new File(appData, ROOTS_FILE.toString());
+            JOURNAL_FILE = new File(appData, JOURNAL_FILE.toString());
         }
 
         MainController primaryController = null;
@@ -61,8 +97,18 @@ public class Main extends Application {
             Main.exit();
         }
 
-        // Load database
-        primaryController.load(DB_FILE);
+        // Load database.  If the saved format was switched, files in the
+        // other formats may be left over, so load the newest one: the
+        // journal holds the edits since it was saved.  It is saved in the
+        // configured format next time.  Saving shards replaces the manifest
+        // in their directory, which updates the directory's time.
+        File catalog = getCatalogFile();
+        for(File f : new File[] { DB_SHARD_DIR, DB_BINARY_FILE, DB_FILE }) {
+            if (f.lastModified() > catalog.lastModified()) {
+                catalog = f;
+            }
+        }
+        primaryController.load(catalog);
     }
 
     @Override
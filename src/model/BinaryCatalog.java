@@ -0,0 +1,367 @@
+package model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+
+// Compact binary form of the catalog.
+//
+// Directories and tags are stored once, in a string table, and referred to
+// by index.  Sizes, timestamps and small numbers are varints, and hashes are
+// raw bytes.  Optional fields are only present if their bit is set in the
+// record's flags.
+//
+// Layout:
+//   int     MAGIC
+//   varint  VERSION
+//   varint  number of strings, then each string
+//   varint  number of photos, then each photo record
+//   int     CRC32 of everything before it
+//
+// A string is a varint length followed by UTF-8 bytes.  Signed values are
+// zigzag-encoded so that small negative numbers stay small.  Fixed-size
+// values are big-endian.
+//
+// The catalog is encoded and decoded in memory, which is much faster than
+// going through a stream a byte at a time, and lets the checksum be
+// verified before any photo is used.  In this format it is a small
+// fraction of the size of the JSON.
+class BinaryCatalog {
+
+    static final int MAGIC = 0x4D544743; // "MTGC"
+    static final int VERSION = 1;
+
+    // Record flags
+    private static final int FAVORITE        = 1 << 0;
+    private static final int MAIN_COPY       = 1 << 1;
+    private static final int CAPTION         = 1 << 2;
+    private static final int ORIGINAL_DATE   = 1 << 3;
+    private static final int PARTIAL_HASH    = 1 << 4;
+    private static final int CONTENT_HASH    = 1 << 5;
+    private static final int PERCEPTUAL_HASH = 1 << 6;
+
+    // True if the stream starts with a binary catalog.  The stream must
+    // support mark/reset; it is left at the start.
+    static boolean isBinary(InputStream is) throws IOException {
+        is.mark(4);
+        try {
+            DataInputStream in = new DataInputStream(is);
+            return in.readInt() == MAGIC;
+        } catch (EOFException ex) {
+            return false;
+        } finally {
+            is.reset();
+        }
+    }
+
+    static void write(OutputStream os, Collection<Photo> photos) throws IOException {
+        // Build the string table
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for(Photo p : photos) {
+            String dir = p.file.getParent();
+            if (dir != null) {
+                intern(strings, dir);
+            }
+            for(String tag : p.getTags()) {
+                intern(strings, tag);
+            }
+        }
+
+        Encoder out = new Encoder(64 * photos.size() + 1024);
+        out.writeInt(MAGIC);
+        out.writeVarLong(VERSION);
+
+        out.writeVarLong(strings.size());
+        for(String s : strings.keySet()) {
+            out.writeString(s);
+        }
+
+        out.writeVarLong(photos.size());
+        for(Photo p : photos) {
+            String dir = p.file.getParent();
+            out.writeVarLong((dir != null) ? strings.get(dir) + 1 : 0);
+            out.writeString(p.file.getName());
+
+            int flags = 0;
+            if (p.favorite)               flags |= FAVORITE;
+            if (p.mainCopy)               flags |= MAIN_COPY;
+            if (p.caption != null)        flags |= CAPTION;
+            if (p.originalDate != null)   flags |= ORIGINAL_DATE;
+            if (p.partialHash != null)    flags |= PARTIAL_HASH;
+            if (p.contentHash != null)    flags |= CONTENT_HASH;
+            if (p.perceptualHash != null) flags |= PERCEPTUAL_HASH;
+            out.writeVarLong(flags);
+
+            out.writeSigned(p.lastModified);
+            out.writeInt(p.hash);
+            out.writeSigned(p.fileSize);
+            out.writeSigned(p.rotation);
+            out.writeSigned(p.width);
+            out.writeSigned(p.height);
+
+            if (p.caption != null) {
+                out.writeString(p.caption);
+            }
+            if (p.originalDate != null) {
+                out.writeSigned(p.originalDate.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(p.originalDate.getNano());
+            }
+            if (p.partialHash != null) {
+                out.writeInt(p.partialHash);
+            }
+            if (p.contentHash != null) {
+                byte[] bytes = HashCode.fromString(p.contentHash).asBytes();
+                out.writeVarLong(bytes.length);
+                out.writeBytes(bytes);
+            }
+            if (p.perceptualHash != null) {
+                out.writeLong(p.perceptualHash);
+            }
+
+            out.writeVarLong(p.tagIds.length);
+            for(String tag : p.getTags()) {
+                out.writeVarLong(strings.get(tag));
+            }
+        }
+
+        // The checksum covers everything before it
+        CRC32 crc = new CRC32();
+        crc.update(out.data, 0, out.pos);
+        out.writeInt((int)crc.getValue());
+
+        os.write(out.data, 0, out.pos);
+        os.flush();
+    }
+
+    // Read photos one at a time, passing each to 'consumer'.  Throws if the
+    // data is not a binary catalog or the checksum doesn't match.
+    static void read(InputStream is, Consumer<Photo> consumer) throws IOException {
+        byte[] data = ByteStreams.toByteArray(is);
+        if (data.length < 8) {
+            throw new IOException("Not a binary catalog");
+        }
+
+        int end = data.length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, end);
+        Decoder in = new Decoder(data, end, end + 4);
+        if (in.readInt() != (int)crc.getValue()) {
+            throw new IOException("Catalog checksum mismatch");
+        }
+
+        in = new Decoder(data, 0, end);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary catalog");
+        }
+        long version = in.readVarLong();
+        if (version != VERSION) {
+            throw new IOException("Unsupported catalog version " + version);
+        }
+
+        String[] strings = new String[in.readCount()];
+        for(int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        // Tag IDs of the strings that are tags, once looked up
+        int[] tagIds = new int[strings.length];
+        Arrays.fill(tagIds, -1);
+
+        int numPhotos = in.readCount();
+        for(int i = 0; i < numPhotos; i++) {
+            Photo p = new Photo();
+
+            int dir = in.readCount();
+            String name = in.readString();
+            p.file = (dir > 0) ? new File(lookup(strings, dir - 1), name) : new File(name);
+
+            long flags = in.readVarLong();
+            p.favorite = (flags & FAVORITE) != 0;
+            p.mainCopy = (flags & MAIN_COPY) != 0;
+
+            p.lastModified = in.readSigned();
+            p.hash = in.readInt();
+            p.fileSize = in.readSigned();
+            p.rotation = (int)in.readSigned();
+            p.width = in.readSigned();
+            p.height = in.readSigned();
+
+            if ((flags & CAPTION) != 0) {
+                p.caption = in.readString();
+            }
+            if ((flags & ORIGINAL_DATE) != 0) {
+                long seconds = in.readSigned();
+                int nanos = in.readCount();
+                p.originalDate = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            }
+            if ((flags & PARTIAL_HASH) != 0) {
+                p.partialHash = in.readInt();
+            }
+            if ((flags & CONTENT_HASH) != 0) {
+                p.contentHash = HashCode.fromBytes(in.readBytes(in.readCount())).toString();
+            }
+            if ((flags & PERCEPTUAL_HASH) != 0) {
+                p.perceptualHash = in.readLong();
+            }
+
+            int numTags = in.readCount();
+            for(int t = 0; t < numTags; t++) {
+                int s = in.readCount();
+                lookup(strings, s);
+                if (tagIds[s] < 0) {
+                    tagIds[s] = TagDictionary.get().intern(strings[s]);
+                }
+                p.addTagId(tagIds[s]);
+            }
+
+            consumer.accept(p);
+        }
+    }
+
+    // --- internal ---
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+
+    private static String lookup(String[] strings, int i) throws IOException {
+        if (i >= strings.length) {
+            throw new IOException("Malformed catalog");
+        }
+        return strings[i];
+    }
+
+    private static class Encoder {
+        byte[] data;
+        int pos = 0;
+
+        Encoder(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            if (pos == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[pos++] = (byte)b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (pos + bytes.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, pos + bytes.length));
+            }
+            System.arraycopy(bytes, 0, data, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(int v) {
+            writeByte(v >>> 24);
+            writeByte(v >>> 16);
+            writeByte(v >>> 8);
+            writeByte(v);
+        }
+
+        void writeLong(long v) {
+            writeInt((int)(v >>> 32));
+            writeInt((int)v);
+        }
+
+        void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                writeByte((int)((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            writeByte((int)v);
+        }
+
+        void writeSigned(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+    }
+
+    private static class Decoder {
+        final byte[] data;
+        final int end;
+        int pos;
+
+        Decoder(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end) {
+                throw new EOFException("Truncated catalog");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        byte[] readBytes(int n) throws IOException {
+            if (n > end - pos) {
+                throw new EOFException("Truncated catalog");
+            }
+            byte[] bytes = Arrays.copyOfRange(data, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readLong() throws IOException {
+            return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readSigned() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        // A length or index, which must fit in an int
+        int readCount() throws IOException {
+            long v = readVarLong();
+            if (v < 0 || v > Integer.MAX_VALUE) {
+                throw new IOException("Malformed catalog");
+            }
+            return (int)v;
+        }
+
+        String readString() throws IOException {
+            int n = readCount();
+            if (n > end - pos) {
+                throw new EOFException("Truncated catalog");
+            }
+            String s = new String(data, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package model;
+
+import java.io.*;
+import java.util.*;
+
+// Compares compression levels for the catalog: the size of the file, and
+// how long it takes to write and to load, in both formats.
+//
+// Usage: CatalogBenchmark <catalog> [levels...]
+//
+// The catalog may be in either format, compressed or not.  Each
+// combination is written to and read from memory a few times, and the
+// fastest run is reported, so disk speed doesn't skew the comparison.
+public class CatalogBenchmark {
+
+    static final int RUNS = 3;
+    static final int[] DEFAULT_LEVELS = { 0, 1, 3, 6, 9 };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: CatalogBenchmark <catalog> [levels...]");
+            System.exit(1);
+        }
+
+        List<Photo> photos = new ArrayList<Photo>();
+        try (InputStream is = new FileInputStream(args[0])) {
+            Database.readCatalog(is, photos::add);
+        }
+
+        int[] levels = DEFAULT_LEVELS;
+        if (args.length > 1) {
+            levels = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++) {
+                levels[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(photos.size() + " photos");
+        System.out.println(String.format("%-8s %5s %12s %10s %10s",
+                "format", "level", "bytes", "write ms", "load ms"));
+
+        for(boolean binary : new boolean[] { false, true }) {
+            for(int level : levels) {
+                long writeTime = Long.MAX_VALUE;
+                long readTime = Long.MAX_VALUE;
+                byte[] data = null;
+
+                for(int run = 0; run < RUNS; run++) {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    long start = System.nanoTime();
+                    Database.writeCatalog(os, photos, binary, level);
+                    writeTime = Math.min(writeTime, System.nanoTime() - start);
+                    data = os.toByteArray();
+
+                    int[] count = { 0 };
+                    start = System.nanoTime();
+                    Database.readCatalog(new ByteArrayInputStream(data), p -> count[0]++);
+                    readTime = Math.min(readTime, System.nanoTime() - start);
+
+                    if (count[0] != photos.size()) {
+                        throw new IOException("Read " + count[0] + " photos, expected " + photos.size());
+                    }
+                }
+
+                System.out.println(String.format("%-8s %5d %12d %10d %10d",
+                        binary ? "binary" : "json", level, data.length,
+                        writeTime / 1000000, readTime / 1000000));
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package model;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Optional gzip compression of catalog files.
+//
+// The JSON catalog is mostly repeated keys and folder names, and shrinks
+// to a fraction of its size, which matters when it is synced through a
+// cloud folder.  Compression is detected from the gzip header when reading,
+// so files keep their names and uncompressed catalogs still load.  Either
+// catalog format can be compressed.
+//
+// See CatalogBenchmark for the trade-off between level, size and load time.
+class CatalogCompression {
+
+    // Levels are those of java.util.zip.Deflater; 0 means uncompressed.
+    static final int NONE = 0;
+
+    private static final int GZIP_MAGIC = 0x1F8B;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // True if the stream starts with a gzip header.  The stream must
+    // support mark/reset; it is left at the start.
+    static boolean isCompressed(InputStream is) throws IOException {
+        is.mark(2);
+        try {
+            int b0 = is.read();
+            int b1 = is.read();
+            return b0 >= 0 && b1 >= 0 && ((b0 << 8) | b1) == GZIP_MAGIC;
+        } finally {
+            is.reset();
+        }
+    }
+
+    // A buffered stream of the uncompressed contents, whether or not 'is'
+    // is compressed.
+    static BufferedInputStream decompress(InputStream is) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(is, BUFFER_SIZE);
+        if (!isCompressed(in)) {
+            return in;
+        }
+        return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    // A stream that compresses into 'os' at the given level.  Closing it
+    // finishes the compressed data, but leaves 'os' open.
+    static OutputStream compress(OutputStream os, int level) throws IOException {
+        OutputStream target = new FilterOutputStream(os) {
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            @Override public void close() throws IOException {
+                flush();
+            }
+        };
+        if (level == NONE) {
+            return target;
+        }
+        return new GZIPOutputStream(target, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
@@ -0,0 +1,46 @@
+package model;
+
+import java.io.*;
+import java.util.*;
+
+// Converts a catalog between the JSON and the binary format.
+//
+// Usage: CatalogConverter <input> <output>
+//
+// The input's format is detected, and the output is written in the other
+// one, uncompressed.
+public class CatalogConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: CatalogConverter <input> <output>");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+
+        long startTime = System.currentTimeMillis();
+        List<Photo> photos = new ArrayList<Photo>();
+        boolean binary;
+        try (InputStream is = CatalogCompression.decompress(new FileInputStream(input))) {
+            binary = BinaryCatalog.isBinary(is);
+            Database.readCatalog(is, photos::add);
+        }
+        long readTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        try (OutputStream os = new FileOutputStream(output)) {
+            if (binary) {
+                Database.writeJson(os, photos);
+            } else {
+                BinaryCatalog.write(os, photos);
+            }
+        }
+        long writeTime = System.currentTimeMillis() - startTime;
+
+        System.out.println("Converted " + photos.size() + " photos from " +
+                (binary ? "binary to JSON" : "JSON to binary") + ": " +
+                input.length() + " -> " + output.length() + " bytes, read in " +
+                readTime + " ms, written in " + writeTime + " ms");
+    }
+}
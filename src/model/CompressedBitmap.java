@@ -0,0 +1,285 @@
+package model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// A set of non-negative ints, stored compactly.  Used to index photos by
+// their ordinal (see Photo.ordinal).
+//
+// Like a Roaring bitmap, the ints are split by their high 16 bits into
+// chunks of 65536.  A chunk with few members is a sorted array of their
+// low 16 bits, 2 bytes each; a chunk with more than ARRAY_MAX is a plain
+// bitmap of 8 KB.  So a rare tag takes space in proportion to the number
+// of photos that have it, and a common one at most a bit per photo.
+//
+// Not thread-safe; guarded by the database lock.
+class CompressedBitmap {
+
+    static final int ARRAY_MAX = 4096;
+
+    // Sorted high 16 bits, and the chunk for each
+    private char[] keys = new char[0];
+    private Chunk[] chunks = new Chunk[0];
+    private int numChunks = 0;
+
+    void add(int x) {
+        char key = (char)(x >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, key, new ArrayChunk());
+        }
+        chunks[i] = chunks[i].add((char)x);
+    }
+
+    void remove(int x) {
+        int i = find((char)(x >>> 16));
+        if (i < 0) {
+            return;
+        }
+        chunks[i] = chunks[i].remove((char)x);
+        if (chunks[i].cardinality() == 0) {
+            removeChunk(i);
+        }
+    }
+
+    // In increasing order
+    void forEach(IntConsumer consumer) {
+        for(int i = 0; i < numChunks; i++) {
+            chunks[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    // The members of both.  Like the other operations, returns a new
+    // bitmap and leaves the arguments alone.
+    static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        return combine(a, b, AND);
+    }
+
+    // The members of either
+    static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        return combine(a, b, OR);
+    }
+
+    // The members of 'a' that are not in 'b'
+    static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+        return combine(a, b, AND_NOT);
+    }
+
+    // --- internal ---
+
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int AND_NOT = 2;
+
+    // Walk the chunks of both in order of their keys, combining each pair
+    // a word at a time.
+    private static CompressedBitmap combine(CompressedBitmap a, CompressedBitmap b, int op) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < a.numChunks || j < b.numChunks) {
+            int ka = (i < a.numChunks) ? a.keys[i] : Integer.MAX_VALUE;
+            int kb = (j < b.numChunks) ? b.keys[j] : Integer.MAX_VALUE;
+
+            long[] words;
+            char key;
+            if (ka == kb) {
+                words = a.chunks[i++].toWords();
+                long[] other = b.chunks[j++].toWords();
+                for(int w = 0; w < words.length; w++) {
+                    switch (op) {
+                    case AND:     words[w] &= other[w];  break;
+                    case OR:      words[w] |= other[w];  break;
+                    case AND_NOT: words[w] &= ~other[w]; break;
+                    }
+                }
+                key = (char)ka;
+            } else if (ka < kb) {
+                // Only in 'a'
+                key = a.keys[i];
+                words = a.chunks[i++].toWords();
+                if (op == AND) {
+                    continue;
+                }
+            } else {
+                // Only in 'b'
+                key = b.keys[j];
+                words = b.chunks[j++].toWords();
+                if (op != OR) {
+                    continue;
+                }
+            }
+
+            Chunk chunk = Chunk.fromWords(words);
+            if (chunk != null) {
+                result.insertChunk(result.numChunks, key, chunk);
+            }
+        }
+        return result;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, numChunks, key);
+    }
+
+    private void insertChunk(int i, char key, Chunk chunk) {
+        if (numChunks == keys.length) {
+            int capacity = Math.max(4, numChunks * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, numChunks - i);
+        System.arraycopy(chunks, i, chunks, i + 1, numChunks - i);
+        keys[i] = key;
+        chunks[i] = chunk;
+        numChunks += 1;
+    }
+
+    private void removeChunk(int i) {
+        System.arraycopy(keys, i + 1, keys, i, numChunks - i - 1);
+        System.arraycopy(chunks, i + 1, chunks, i, numChunks - i - 1);
+        numChunks -= 1;
+        chunks[numChunks] = null;
+    }
+
+    // Returns the chunk to use from now on, which may be a different kind.
+    private static abstract class Chunk {
+        abstract Chunk add(char x);
+        abstract Chunk remove(char x);
+        abstract int cardinality();
+        abstract void forEach(int high, IntConsumer consumer);
+        // A new array of 1024 words with the members' bits set
+        abstract long[] toWords();
+
+        // The smaller kind of chunk for the given bits, or null if none
+        // are set.  Takes ownership of 'words'.
+        static Chunk fromWords(long[] words) {
+            int n = 0;
+            for(long w : words) {
+                n += Long.bitCount(w);
+            }
+            if (n == 0) {
+                return null;
+            }
+            if (n > ARRAY_MAX) {
+                return new BitmapChunk(words, n);
+            }
+            ArrayChunk array = new ArrayChunk();
+            array.values = new char[n];
+            for(int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    array.values[array.size++] = (char)((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+    }
+
+    private static class ArrayChunk extends Chunk {
+        char[] values = new char[4];
+        int size = 0;
+
+        @Override Chunk add(char x) {
+            int i = Arrays.binarySearch(values, 0, size, x);
+            if (i >= 0) {
+                return this;
+            }
+            if (size == ARRAY_MAX) {
+                return new BitmapChunk(this).add(x);
+            }
+            i = -i - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = x;
+            size += 1;
+            return this;
+        }
+
+        @Override Chunk remove(char x) {
+            int i = Arrays.binarySearch(values, 0, size, x);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size -= 1;
+            }
+            return this;
+        }
+
+        @Override int cardinality() { return size; }
+
+        @Override void forEach(int high, IntConsumer consumer) {
+            for(int i = 0; i < size; i++) {
+                consumer.accept(high | values[i]);
+            }
+        }
+
+        @Override long[] toWords() {
+            long[] words = new long[1 << 10];
+            for(int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return words;
+        }
+    }
+
+    private static class BitmapChunk extends Chunk {
+        final long[] words;
+        int size = 0;
+
+        BitmapChunk(ArrayChunk from) {
+            words = new long[1 << 10];
+            for(int i = 0; i < from.size; i++) {
+                add(from.values[i]);
+            }
+        }
+
+        BitmapChunk(long[] words, int size) {
+            this.words = words;
+            this.size = size;
+        }
+
+        @Override long[] toWords() {
+            return words.clone();
+        }
+
+        @Override Chunk add(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) == 0) {
+                words[x >>> 6] |= bit;
+                size += 1;
+            }
+            return this;
+        }
+
+        @Override Chunk remove(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) != 0) {
+                words[x >>> 6] &= ~bit;
+                size -= 1;
+            }
+            // Back to an array, once it is the smaller of the two
+            if (size < ARRAY_MAX / 2) {
+                ArrayChunk array = new ArrayChunk();
+                forEach(0, v -> array.add((char)v));
+                return array;
+            }
+            return this;
+        }
+
+        @Override int cardinality() { return size; }
+
+        @Override void forEach(int high, IntConsumer consumer) {
+            for(int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    consumer.accept(high | (w << 6) | bit);
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import java.nio.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
@@ -20,7 +22,6 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
 import com.fasterxml.jackson.core.*;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.datatype.jsr310.*;
@@ -38,53 +39,116 @@ public class Database extends Observable {
         return false;
     }
 
-    ArrayList<File> searchRoots = new ArrayList<File>();
+    SearchRoots searchRoots = new SearchRoots();
 
     Map<File, Photo> images = new HashMap<File, Photo>();
-    boolean modified = false;
+    volatile boolean modified = false;
+    // When 'modified' was last set
+    volatile long lastChanged = 0;
 
-    class Deduplication implements Comparable {
-        Photo canonical;
-        int num;
+    DuplicateIndex duplicates = new DuplicateIndex();
 
-        Deduplication(Photo p) {
-            canonical = p;
-            num = 1;
-        }
-
-        @Override
-        public int compareTo(Object o) {
-            if (o instanceof Deduplication) {
-                return canonical.getHash() -
-                    ((Deduplication)o).canonical.getHash();
-            }
-            return 0;
-        }
-    };
-    TreeSet<Deduplication> deduplication = new TreeSet<Deduplication>();
+    // Maximum Hamming distance between the perceptual hashes of near
+    // duplicates, out of 64 bits.  Can be set with the
+    // "megatag.nearDuplicateDistance" system property.
+    public static final int NEAR_DUPLICATE_DISTANCE =
+            Integer.getInteger("megatag.nearDuplicateDistance", 10);
 
     Map<String, Integer> tagCounts = new TreeMap<String, Integer>();
+    // The same counts, ranked for suggestions
+    TagRanking tagRanking = new TagRanking();
+    // The tags in use, by prefix; null when they have changed since it
+    // was built
+    @Nullable TagPrefixIndex tagPrefixes;
+
+    // Photos by ordinal (see Photo.ordinal); null where one was removed
+    ArrayList<Photo> ordinals = new ArrayList<Photo>();
+    // Inverted index: the ordinals of the photos with each tag, indexed by
+    // tag ID (see TagDictionary).  Null for tags no photo has had.
+    ArrayList<CompressedBitmap> tagIndex = new ArrayList<CompressedBitmap>();
+    // The ordinals in use
+    CompressedBitmap allPhotos = new CompressedBitmap();
 
     Object lock = new Object();
 
+    @Nullable ThumbnailStore thumbnailStore;
+    ThumbnailCache thumbnailCache = new ThumbnailCache();
+
+    @Nullable FileVerifier verifier;
+
+    private final AtomicBoolean publishPending = new AtomicBoolean();
+
+    // While loading, photos are inserted in batches of LOAD_BATCH_SIZE, and
+    // observers notified at most every LOAD_PUBLISH_MS.
+    static final int LOAD_BATCH_SIZE = 1000;
+    static final long LOAD_PUBLISH_MS = 250;
+    @Nullable FolderWatcher watcher;
+
+    // Where the catalog is saved, and the journal of edits made since
+    @Nullable File catalogFile;
+    boolean binaryCatalog = false;
+    // If set, catalogFile is a directory of shards (see ShardedCatalog)
+    boolean shardedCatalog = false;
+    int catalogCompression = CatalogCompression.NONE;
+    // Shards with changes that aren't saved yet; guarded by the lock
+    BitSet dirtyShards = new BitSet(ShardedCatalog.NUM_SHARDS);
+    @Nullable File rootsFile;
+    @Nullable EditJournal journal;
+    private final Object saveLock = new Object();
+
+    // Autosave waits for AUTOSAVE_QUIET_MS without changes, so that a
+    // burst of changes is saved once, but no longer than AUTOSAVE_MAX_MS.
+    static final long AUTOSAVE_CHECK_MS = 1000;
+    static final long AUTOSAVE_QUIET_MS = 5000;
+    static final long AUTOSAVE_MAX_MS = 60000;
+    @Nullable ScheduledExecutorService autosave;
+    volatile long lastSaved = System.currentTimeMillis();
+
     public int size() { return images.size(); }
 
-    public int numDistinct() { return deduplication.size(); }
+    // Use a persistent store for thumbnails, so that they don't need to be
+    // regenerated from every photo at startup.
+    public void openThumbnailStore(File f) {
+        try {
+            thumbnailStore = new ThumbnailStore(f);
+            System.out.println("Thumbnail store has " + thumbnailStore.size() + " entries");
+        } catch (IOException ex) {
+            System.out.println("Could not open thumbnail store: " + ex.toString());
+            thumbnailStore = null;
+        }
+    }
+
+    @Nullable public ThumbnailStore getThumbnailStore() { return thumbnailStore; }
+    public ThumbnailCache getThumbnailCache() { return thumbnailCache; }
+
+    public int numDistinct() {
+        synchronized(lock) {
+            return duplicates.numGroups();
+        }
+    }
     public boolean isCanonicalCopy(Photo p) {
-        Deduplication lookup = new Deduplication(p);
-        Deduplication floor = deduplication.floor(lookup);
-        if (floor != null && floor.compareTo(lookup) == 0) {
-            return floor.canonical == p;
+        synchronized(lock) {
+            return p.group != null && p.group.canonical == p;
+        }
+    }
+    // Call on the FX thread.
+    public void setCanonicalCopy(Photo p) {
+        List<Photo> copies;
+        synchronized(lock) {
+            copies = duplicates.setCanonical(p);
+        }
+        for(Photo q : copies) {
+            q.duplicatesChanged();
+            markDirty(q);
         }
-        return false; // Huh?
+        recordEdit(p, j -> j.mainCopy(p));
+        setChanged();
+        notifyObservers();
     }
     public int numDuplicates(Photo p) {
-        Deduplication lookup = new Deduplication(p);
-        Deduplication floor = deduplication.floor(lookup);
-        if (floor != null && floor.compareTo(lookup) == 0) {
-            return floor.num;
+        synchronized(lock) {
+            return (p.group != null) ? p.group.copies.size() : 0;
         }
-        return 0; // Huh?
     }
 
     public Collection<Photo> get() {
@@ -97,27 +161,127 @@ public class Database extends Observable {
         return result;
     }
 
+    // Photos with a tag, looked up in the index rather than by checking
+    // every photo.
+    public List<Photo> getTagged(String tag) {
+        List<Photo> result = new ArrayList<Photo>();
+        synchronized(lock) {
+            CompressedBitmap photos = getTagIndex(tag);
+            if (photos != null) {
+                photos.forEach(i -> result.add(ordinals.get(i)));
+            }
+        }
+        return result;
+    }
+
+    // Photos matching a query, evaluated on the tag index.
+    public List<Photo> query(TagQuery q) {
+        List<Photo> result = new ArrayList<Photo>();
+        synchronized(lock) {
+            q.evaluate(this).forEach(i -> result.add(ordinals.get(i)));
+        }
+        return result;
+    }
+
+    // The ordinals of the photos with a tag, or null if none have it.  Call
+    // with the lock held, and don't modify it.
+    @Nullable CompressedBitmap getTagIndex(String tag) {
+        int id = TagDictionary.get().lookup(tag);
+        if (id < 0 || id >= tagIndex.size()) {
+            return null;
+        }
+        return tagIndex.get(id);
+    }
+
+    // The tags on the most photos, most first
     public List<String> getTopTags(int num) {
-        List<String> rsl = new ArrayList<String>();
-        for(String tag : tagCounts.keySet()) {
-            rsl.add(tag);
-            if (rsl.size() >= num) {
-                break;
+        synchronized(lock) {
+            return tagRanking.mostUsed(num);
+        }
+    }
+
+    // The tags most recently added to photos, most recent first
+    public List<String> getRecentTags(int num) {
+        synchronized(lock) {
+            return tagRanking.mostRecent(num);
+        }
+    }
+
+    // The tags in use that start with 'prefix', ignoring case, in
+    // alphabetical order.  The list doesn't change, so the UI can show
+    // it without copying.
+    public List<String> getTagsWithPrefix(String prefix) {
+        return getTagPrefixIndex().withPrefix(prefix);
+    }
+
+    // Completions for a partly typed tag: up to 'num' tags in use that
+    // start with 'prefix', ignoring case, the most used first.
+    public List<String> completeTag(String prefix, int num) {
+        synchronized(lock) {
+            return getTagPrefixIndex().complete(prefix, num, tagRanking::countOf);
+        }
+    }
+
+    // The number of photos with a tag
+    public int getTagCount(String tag) {
+        synchronized(lock) {
+            return tagCounts.getOrDefault(tag, 0);
+        }
+    }
+
+    // Rebuilt only when a tag is first used or dropped, not each time a
+    // photo is tagged.
+    private TagPrefixIndex getTagPrefixIndex() {
+        synchronized(lock) {
+            if (tagPrefixes == null) {
+                tagPrefixes = new TagPrefixIndex(tagRanking.tags());
+            }
+            return tagPrefixes;
+        }
+    }
+
+    // Called when a photo gains or loses a tag.
+    void tagChanged(Photo p, int tagId, boolean added) {
+        synchronized(lock) {
+            updateTag(p, tagId, added);
+            if (added) {
+                tagRanking.used(TagDictionary.get().name(tagId));
             }
         }
-        return rsl;
     }
 
-    public Map<String, Integer> getAllTags() {
-        return tagCounts;
+    // Count and index a change to a photo's tags, without counting it as a
+    // use of the tag.  Call with the lock held.
+    private void updateTag(Photo p, int tagId, boolean added) {
+        incTag(TagDictionary.get().name(tagId), added ? 1 : -1);
+        if (p.ordinal < 0) {
+            // Not in the database
+            return;
+        }
+        if (added) {
+            while (tagIndex.size() <= tagId) {
+                tagIndex.add(null);
+            }
+            if (tagIndex.get(tagId) == null) {
+                tagIndex.set(tagId, new CompressedBitmap());
+            }
+            tagIndex.get(tagId).add(p.ordinal);
+        } else if (tagId < tagIndex.size() && tagIndex.get(tagId) != null) {
+            tagIndex.get(tagId).remove(p.ordinal);
+        }
     }
 
     public void incTag(String tag, int delta) {
-        int val = delta;
-        if (tagCounts.containsKey(tag)) {
-            val += tagCounts.get(tag);
+        synchronized(lock) {
+            int val = delta;
+            if (tagCounts.containsKey(tag)) {
+                val += tagCounts.get(tag);
+            }
+            tagCounts.put(tag, val);
+            if (tagRanking.count(tag, delta)) {
+                tagPrefixes = null;
+            }
         }
-        tagCounts.put(tag, val);
     }
 
     public void addFiles(List<File> list, @Nullable StringProperty progressMessage) {
@@ -127,8 +291,18 @@ public class Database extends Observable {
 
         Task<Void> task = new Task<Void>() {
             @Override public Void call() {
-                for(File f : list) {
-                    importFile(f);
+                ProgressReporter progress = new ProgressReporter("Imported", this::updateMessage);
+                progress.setTotal(list.size());
+                progress.start();
+
+                ImportPipeline pipeline = new ImportPipeline(Database.this, progress);
+                try {
+                    for(File f : list) {
+                        pipeline.submit(f);
+                    }
+                } finally {
+                    pipeline.finish();
+                    progress.stop();
                 }
                 return null;
             }
@@ -140,11 +314,13 @@ public class Database extends Observable {
         }
 
         task.setOnSucceeded(e -> {
-            // The database is marked changed inside 'importFile'.
+            // The database is marked changed inside 'insert'.
             notifyObservers();
 
-            progressMessage.unbind();
-            progressMessage.set("Total = " + size() + " images.");
+            if (progressMessage != null) {
+                progressMessage.unbind();
+                progressMessage.set("Total = " + size() + " images.");
+            }
         });
 
         new Thread(task).start();
@@ -153,32 +329,71 @@ public class Database extends Observable {
     public void addSearchRoot(File root, @Nullable StringProperty progressMessage)
     {
         synchronized(lock) {
-            searchRoots.add(root);
+            if (searchRoots.addRoot(root)) {
+                setChangedSinceSave();
+            }
+        }
+
+        scan(Collections.singletonList(root), progressMessage);
+    }
+
+    public List<File> getSearchRoots() {
+        synchronized(lock) {
+            return new ArrayList<File>(searchRoots.getRoots());
         }
+    }
 
+    // Watch the search roots, and apply changes to the database as they
+    // happen, so that no manual rescan is needed.
+    public void setWatching(boolean enable) {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        if (enable) {
+            try {
+                watcher = new FolderWatcher(this);
+                watcher.start();
+            } catch (IOException ex) {
+                System.out.println("Could not watch folders: " + ex.toString());
+            }
+        }
+    }
+
+    // Pick up new and deleted files in all search roots.
+    // Only directories that changed since the last scan are listed.
+    public void rescan(@Nullable StringProperty progressMessage) {
+        scan(getSearchRoots(), progressMessage);
+    }
+
+    private void scan(List<File> roots, @Nullable StringProperty progressMessage) {
         Task<Void> task = new Task<Void>() {
             @Override public Void call() {
                 updateMessage("Starting scan...");
 
+                ProgressReporter progress = new ProgressReporter("Imported", this::updateMessage);
+                ImportPipeline pipeline = new ImportPipeline(Database.this, progress);
+                DirectoryScanner scanner = new DirectoryScanner(Database.this, searchRoots, pipeline);
+                progress.setDetail(() -> "Scanned " + scanner.getNumDirs() + " folders (" +
+                        scanner.numDirsSkipped + " unchanged), found " + scanner.numFilesFound + " files.");
+                progress.start();
+
+                boolean finished = false;
                 try {
-                    Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>()
-                    {
-                        int numFiles = 0;
-
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            if (attrs.isRegularFile() && isImageExtension(file.toString())) {
-                                ++numFiles;
-                                updateMessage("Found " + numFiles + " files.  Scanning...");
-                                importFile(file.toFile());
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                } catch (IOException ex) {
-                    // Give up.
+                    for(File root : roots) {
+                        scanner.scan(root);
+                    }
+                } finally {
+                    finished = pipeline.finish();
+                    progress.stop();
+                }
+                if (finished) {
+                    scanner.saveState();
                 }
-                updateMessage("Total = " + size() + " images.");
+
+                System.out.println("Scan: listed " + scanner.numDirsListed + " folders, skipped " +
+                        scanner.numDirsSkipped + ", imported " + pipeline.getNumCompleted() +
+                        " files, " + scanner.numMissing + " newly missing");
                 return null;
             }
         };
@@ -192,8 +407,15 @@ public class Database extends Observable {
             setChanged();
             notifyObservers();
 
-            progressMessage.unbind();
-            progressMessage.set("Total = " + size() + " images.");
+            if (progressMessage != null) {
+                progressMessage.unbind();
+                progressMessage.set("Total = " + size() + " images.");
+            }
+
+            // Watch any newly added roots
+            if (watcher != null) {
+                watcher.registerKnownDirs();
+            }
         });
 
         new Thread(task).start();
@@ -203,13 +425,12 @@ public class Database extends Observable {
         synchronized(lock) {
             for(Photo p: toDelete) {
                 p.removeAllTags();
-                images.remove(p.getFile());
-            }
-
-            // Redo deduplication from scratch
-            deduplication.clear();
-            for(Photo p : images.values()) {
-                addToDeduplication(p);
+                if (images.remove(p.getFile()) == p) {
+                    duplicates.remove(p);
+                    unindex(p);
+                    markDirty(p);
+                }
+                thumbnailCache.remove(p);
             }
         }
 
@@ -219,29 +440,49 @@ public class Database extends Observable {
     }
 
     // Repopulate all data from photo files.
-    // Useful if any photos have been changed.
+    // Useful if any photos have been changed.  Only files whose size or
+    // modification time changed are read again.
     public void refreshAll( @Nullable StringProperty progressMessage )
     {
         Task<Void> task = new Task<Void>() {
-            @Override public Void call() {
+            @Override public Void call() throws InterruptedException {
                 updateMessage("Starting refresh...");
 
                 // Copy to avoid holding lock
-                final Vector<Photo> copy;
-                synchronized(lock) {
-                    copy = new Vector<Photo>(images.values());
-                }
+                final Collection<Photo> copy = Database.this.get();
+
+                final AtomicInteger numChanged = new AtomicInteger();
 
-                int count = 0;
+                ProgressReporter progress = new ProgressReporter("Refreshed", this::updateMessage);
+                progress.setTotal(copy.size());
+                progress.setDetail(() -> numChanged.get() + " changed.");
+                progress.start();
+
+                ExecutorService workers = Executors.newFixedThreadPool(ImportPipeline.NUM_WORKERS);
                 for(Photo p : copy) {
-                    p.readTransient();
-                    p.readMetadata();
-                    count += 1;
-                    updateMessage("Refreshed " + count + " of " + size() + " images");
+                    workers.execute(() -> {
+                        long bytesRead = 0;
+                        if (p.refresh()) {
+                            numChanged.incrementAndGet();
+                            bytesRead = p.getFileSize();
+                            rehash(p);
+                        }
+                        progress.fileDone(bytesRead);
+                    });
+                }
+                workers.shutdown();
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } finally {
+                    progress.stop();
                 }
+                resolveDuplicates();
 
-                // TODO: Need to recompute deduplication if hashes changed.
+                System.out.println(progress.format());
 
+                if (numChanged.get() > 0) {
+                    setChangedSinceSave();
+                }
                 return null;
             }
         };
@@ -254,30 +495,188 @@ public class Database extends Observable {
         task.setOnSucceeded(e -> {
             setChanged();
             notifyObservers();
+
+            if (progressMessage != null) {
+                progressMessage.unbind();
+                progressMessage.set("Total = " + size() + " images.");
+            }
         });
 
         new Thread(task).start();
     }
 
-    private void addToDeduplication(Photo p) {
-        Deduplication lookup = new Deduplication(p);
-        Deduplication floor = deduplication.floor(lookup);
-        if (floor != null && floor.compareTo(lookup) == 0) {
-            // Same hash exists
-            floor.num += 1;
-        } else {
-            // Hash not found
-            deduplication.add(lookup);
+    // Move a photo whose file was re-read into the right duplicate group.
+    // Call resolveDuplicates afterwards.
+    void rehash(Photo p) {
+        synchronized(lock) {
+            if (images.get(p.getFile()) != p) {
+                // Deleted meanwhile
+                return;
+            }
+            duplicates.update(p);
+            markDirty(p);
+        }
+    }
+
+    // Groups of photos that look alike: each photo is grouped with every
+    // photo whose perceptual hash is within maxDistance of its own, and so
+    // on transitively.  Returns a group number for each photo that has
+    // near duplicates; photos without any are left out.
+    //
+    // The hashes are copied out under the lock, and searched without it
+    // (see MultiIndexHash), so the UI isn't held up by a long pass.
+    public Map<Photo, Integer> findNearDuplicates(int maxDistance) {
+        long startTime = System.currentTimeMillis();
+
+        List<Photo> photos = new ArrayList<Photo>();
+        long[] hashes;
+        synchronized(lock) {
+            for(Photo p : images.values()) {
+                if (p.perceptualHash != null) {
+                    photos.add(p);
+                }
+            }
+            hashes = new long[photos.size()];
+            for(int i = 0; i < hashes.length; i++) {
+                hashes[i] = photos.get(i).perceptualHash;
+            }
+        }
+
+        // Union-find over the indices: each pair within maxDistance joins
+        // their sets
+        int[] parent = new int[hashes.length];
+        for(int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        MultiIndexHash index = new MultiIndexHash(hashes, maxDistance);
+        for(int i = 0; i < hashes.length; i++) {
+            int a = i;
+            index.forEachNeighbor(i, j -> {
+                int ra = findRoot(parent, a);
+                int rb = findRoot(parent, j);
+                if (ra != rb) {
+                    parent[Math.max(ra, rb)] = Math.min(ra, rb);
+                }
+            });
+        }
+
+        // Number the sets with more than one photo, in order of their first
+        // photo
+        Map<Photo, Integer> groups = new HashMap<Photo, Integer>();
+        int[] setSize = new int[hashes.length];
+        for(int i = 0; i < hashes.length; i++) {
+            setSize[findRoot(parent, i)] += 1;
+        }
+        int[] groupOf = new int[hashes.length];
+        int numGroups = 0;
+        for(int i = 0; i < hashes.length; i++) {
+            int root = findRoot(parent, i);
+            if (setSize[root] <= 1) {
+                continue;
+            }
+            if (root == i) {
+                groupOf[root] = numGroups++;
+            }
+            groups.put(photos.get(i), groupOf[root]);
+        }
+
+        System.out.println("Found " + groups.size() + " near duplicates in " + numGroups +
+                " groups in " + (System.currentTimeMillis() - startTime) + " ms");
+        return groups;
+    }
+
+    // The root of i's set, halving the path on the way
+    private static int findRoot(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // Hash the photos that might be copies of another one, and group them
+    // with their copies.  The files are read outside of the lock.
+    // Returns the number of hashes computed.
+    int resolveDuplicates() {
+        long startTime = System.currentTimeMillis();
+        int numHashed = 0;
+        Set<Photo> failed = new HashSet<Photo>();
+
+        // Each round computes the next tier of hash, which may show that
+        // more photos need hashing.
+        while (true) {
+            List<Photo> todo;
+            synchronized(lock) {
+                todo = duplicates.takeUnresolved();
+            }
+            todo.removeAll(failed);
+            if (todo.isEmpty()) {
+                break;
+            }
+
+            for(Photo p : todo) {
+                boolean ok = (p.partialHash == null)
+                        ? p.computePartialHash()
+                        : p.computeContentHash();
+                if (ok) {
+                    numHashed += 1;
+                } else {
+                    failed.add(p);
+                }
+            }
+            synchronized(lock) {
+                for(Photo p : todo) {
+                    if (images.get(p.getFile()) == p && !failed.contains(p)) {
+                        duplicates.resolved(p);
+                        markDirty(p);
+                    }
+                }
+            }
         }
+
+        if (numHashed > 0) {
+            setChangedSinceSave();
+            publishChanges();
+
+            System.out.println("Computed " + numHashed + " hashes of possible duplicates in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return numHashed;
+    }
+
+    // Notify observers on the FX thread.  Calls made while a notification
+    // is still waiting to run are folded into it.
+    void publishChanges() {
+        if (!publishPending.compareAndSet(false, true)) {
+            return;
+        }
+        Platform.runLater(() -> {
+            publishPending.set(false);
+            setChanged();
+            notifyObservers();
+        });
     }
 
     public void clear() {
+        if (verifier != null) {
+            verifier.cancel();
+            verifier = null;
+        }
+        setWatching(false);
+
         synchronized(lock) {
-            deduplication.clear();
+            duplicates.clear();
             images.clear();
             searchRoots.clear();
             tagCounts.clear();
+            tagRanking.clear();
+            tagPrefixes = null;
+            ordinals.clear();
+            tagIndex.clear();
+            allPhotos = new CompressedBitmap();
+            dirtyShards.set(0, ShardedCatalog.NUM_SHARDS);
         }
+        thumbnailCache.clear();
 
         setChangedSinceSave();
         setChanged();
@@ -286,23 +685,19 @@ public class Database extends Observable {
 
     // --- serialization / deserialization ---
 
-    public void write(OutputStream os) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.registerModule(new JavaTimeModule());
-
-        mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
-
-        // Copy to avoid holding lock
-        final Vector<Photo> copy;
-        synchronized(lock) {
-            copy = new Vector<Photo>(images.values());
-        }
-
-        // TODO: Run in separate thread?
+    // Shared, since mappers are expensive to create and are thread-safe
+    // once configured.  A sharded catalog uses it for every shard.
+    private static final ObjectMapper catalogMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(SerializationFeature.INDENT_OUTPUT, true)
+            // The caller closes the stream, after syncing it
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
+    static void writeJson(OutputStream os, Collection<Photo> photos) throws IOException {
         // Object to JSON in file
         try {
-            mapper.writeValue(os, copy);
+            catalogMapper.writeValue(os, photos);
         } catch (JsonMappingException ex) {
             System.out.println("JSON error: " + ex.toString());
             throw new IOException("JSON Error");
@@ -312,52 +707,425 @@ public class Database extends Observable {
         }
     }
 
+    // Write a catalog in either format, compressed at the given level (see
+    // CatalogCompression).  Leaves the stream open.
+    static void writeCatalog(OutputStream os, Collection<Photo> photos, boolean binary, int compression)
+            throws IOException {
+        try (OutputStream out = CatalogCompression.compress(os, compression)) {
+            if (binary) {
+                BinaryCatalog.write(out, photos);
+            } else {
+                writeJson(out, photos);
+            }
+        }
+    }
+
+    // Read a catalog in either format, compressed or not, passing each
+    // photo to 'consumer'.
+    static void readCatalog(InputStream is, Consumer<Photo> consumer) throws IOException {
+        BufferedInputStream in = CatalogCompression.decompress(is);
+        if (BinaryCatalog.isBinary(in)) {
+            BinaryCatalog.read(in, consumer);
+        } else {
+            readJson(in, consumer);
+        }
+    }
+
+    // Photos are read one at a time from the JSON stream.
+    static void readJson(InputStream is, Consumer<Photo> consumer) throws IOException {
+        ObjectReader reader = catalogMapper.readerFor(Photo.class);
+
+        try (JsonParser parser = catalogMapper.getFactory().createParser(is)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Not a catalog: expected a JSON array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                consumer.accept(reader.readValue(parser));
+            }
+        }
+    }
+
+    public void writeSearchRoots(OutputStream os) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        synchronized(lock) {
+            mapper.writeValue(os, searchRoots);
+        }
+    }
+
+    public void readSearchRoots(InputStream is) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        SearchRoots roots = mapper.readValue(is, SearchRoots.class);
+        synchronized(lock) {
+            searchRoots = roots;
+        }
+    }
+
+    // Photos are read one at a time and inserted in batches.  Observers
+    // are notified as batches arrive, so the view fills up progressively,
+    // and the catalog is never held in memory twice.
+    // Accepts both the JSON and the binary format.
     public void read(InputStream is, Consumer<String> message) throws IOException
     {
         message.accept("Reading database");
 
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.registerModule(new JavaTimeModule());
+        ProgressReporter progress = new ProgressReporter("Loaded", message);
+        progress.start();
+
+        List<Photo> batch = new ArrayList<Photo>(LOAD_BATCH_SIZE);
+        AtomicLong lastPublished = new AtomicLong(System.currentTimeMillis());
+
+        try {
+            readCatalog(is, (Photo p) -> {
+                p.setDatabase(this);
+                batch.add(p);
+                progress.fileDone(0);
+
+                if (batch.size() >= LOAD_BATCH_SIZE) {
+                    insertLoaded(batch);
+                    batch.clear();
+
+                    if (System.currentTimeMillis() - lastPublished.get() >= LOAD_PUBLISH_MS) {
+                        publishChanges();
+                        lastPublished.set(System.currentTimeMillis());
+                    }
+                }
+            });
+            insertLoaded(batch);
+        } catch (IOException | RuntimeException ex) {
+            loadFailed();
+            throw ex;
+        } finally {
+            progress.stop();
+        }
+
+        System.out.println("Read " + progress.getNumDone() + " images");
+        synchronized(lock) {
+            // Saving in shards has to write all of them
+            dirtyShards.set(0, ShardedCatalog.NUM_SHARDS);
+        }
+        loadDone();
+    }
+
+    // Read a catalog saved in shards (see ShardedCatalog), in parallel.
+    public void readShards(File dir, Consumer<String> message) throws IOException
+    {
+        message.accept("Reading database");
+
+        ProgressReporter progress = new ProgressReporter("Loaded", message);
+        progress.start();
+
+        AtomicLong lastPublished = new AtomicLong(System.currentTimeMillis());
+
+        try {
+            ShardedCatalog.read(dir, (List<Photo> shard) -> {
+                for(Photo p : shard) {
+                    p.setDatabase(this);
+                    progress.fileDone(0);
+                }
+                insertLoaded(shard);
+
+                long last = lastPublished.get();
+                long now = System.currentTimeMillis();
+                if (now - last >= LOAD_PUBLISH_MS && lastPublished.compareAndSet(last, now)) {
+                    publishChanges();
+                }
+            });
+        } catch (IOException | RuntimeException ex) {
+            loadFailed();
+            throw ex;
+        } finally {
+            progress.stop();
+        }
+
+        System.out.println("Read " + progress.getNumDone() + " images");
+        synchronized(lock) {
+            dirtyShards.clear();
+        }
+        loadDone();
+    }
+
+    // Don't leave a partial catalog that could be saved over the complete
+    // one.
+    private void loadFailed() {
+        synchronized(lock) {
+            images.clear();
+            duplicates.clear();
+            tagCounts.clear();
+            tagRanking.clear();
+            tagPrefixes = null;
+            ordinals.clear();
+            tagIndex.clear();
+            allPhotos = new CompressedBitmap();
+        }
+        publishChanges();
+    }
+
+    private void loadDone() {
+        // Same as the file, so far
+        clearChangedSinceSave();
+        publishChanges();
+
+        startVerifier();
+    }
+
+    // --- saving ---
+
+    // Set the files the catalog and the search roots are saved to, whether
+    // the catalog is in the binary format, and whether it is split into
+    // shards in the 'catalog' directory.
+    public void setSaveFiles(File catalog, boolean binary, boolean sharded, File roots) {
+        catalogFile = catalog;
+        binaryCatalog = binary;
+        shardedCatalog = sharded;
+        rootsFile = roots;
+    }
+
+    // Compress the catalog when saving, at a java.util.zip.Deflater level,
+    // or not if 0.  Compressed catalogs are recognized when reading.
+    public void setCompression(int level) {
+        catalogCompression = level;
+    }
+
+    // Save changes in the background, once they have settled.  Call once
+    // the catalog has been loaded, so that a partial one isn't saved.
+    public void startAutosave() {
+        if (autosave != null) {
+            return;
+        }
+        autosave = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autosave");
+            t.setDaemon(true);
+            return t;
+        });
+        autosave.scheduleWithFixedDelay(() -> {
+            if (!modified) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastChanged < AUTOSAVE_QUIET_MS && now - lastSaved < AUTOSAVE_MAX_MS) {
+                return;
+            }
+            try {
+                long ms = save();
+                System.out.println("Autosaved in " + ms + " ms");
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("WARNING: Autosave failed: " + ex.toString());
+            }
+        }, AUTOSAVE_CHECK_MS, AUTOSAVE_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Open the journal of edits (see EditJournal) and apply the edits in it
+    // to the catalog.  Call after the catalog has been read.  From then on,
+    // edits are recorded in the journal instead of requiring the whole
+    // catalog to be saved.
+    public void openJournal(File f) {
+        try {
+            EditJournal j = new EditJournal(f, this::compactJournal);
+            int numApplied;
+            synchronized(lock) {
+                numApplied = j.replay(this);
+            }
+            journal = j;
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flushJournal));
+            System.out.println("Applied " + numApplied + " edits from journal");
+        } catch (IOException ex) {
+            System.out.println("Could not open journal: " + ex.toString());
+            journal = null;
+        }
+        publishChanges();
+    }
 
-        ArrayList<Photo> readImages = mapper.readValue(is,
-                new TypeReference<ArrayList<Photo>>() { });
+    // Record an edit to a photo.  Without a journal, the whole catalog
+    // has to be saved.  Either way, the photo's shard has to be written
+    // before the journal can be emptied.
+    void recordEdit(Photo p, Consumer<EditJournal> edit) {
+        markDirty(p);
+        if (journal != null) {
+            edit.accept(journal);
+        } else {
+            setChangedSinceSave();
+        }
+    }
+
+    // Save the catalog.  Only photos being added, removed or re-read need
+    // a new snapshot; edits are already in the journal, which just needs
+    // to be written out.  Returns how long it took, in milliseconds.
+    // Safe to call from any thread.
+    public long save() throws IOException {
+        long start = System.currentTimeMillis();
+        if (journal == null || wasChangedSinceSave()) {
+            saveSnapshot();
+        } else {
+            journal.flush();
+        }
+        return System.currentTimeMillis() - start;
+    }
 
-        System.out.println("Read " + readImages.size() + " images");
+    // Write the whole catalog and the search roots, and empty the journal.
+    //
+    // The photos are copied under the lock, which is quick, so the snapshot
+    // is consistent and the slow part is done without holding it.  Each
+    // file is written to a temporary file next to it, which then replaces
+    // it, so a crash while saving leaves the previous one intact.  A
+    // sharded catalog only copies and writes the shards that changed.
+    public void saveSnapshot() throws IOException {
+        if (catalogFile == null || rootsFile == null) {
+            throw new IOException("No catalog file");
+        }
+
+        synchronized(saveLock) {
+            // Everything journaled so far is in memory, so it will be in the
+            // snapshot
+            long journaled = 0;
+            if (journal != null) {
+                journal.flush();
+                journaled = journal.size();
+            }
 
-        int count = 0;
-        for(Photo p : readImages) {
-            p.setDatabase(this);
-            p.readTransient();
-            count += 1;
+            ShardedCatalog.Manifest manifest = shardedCatalog ? ShardedCatalog.readManifest(catalogFile) : null;
 
+            final Map<Integer, List<Photo>> shards = new HashMap<Integer, List<Photo>>();
+            final List<Photo> photos = new ArrayList<Photo>();
+            final BitSet dirty;
+            final ByteArrayOutputStream roots = new ByteArrayOutputStream();
             synchronized(lock) {
-                if (!images.containsKey(p.getFile())) {
-                    images.put(p.getFile(), p);
-                    addToDeduplication(p);
+                clearChangedSinceSave();
+                if (!shardedCatalog || !ShardedCatalog.canUpdate(manifest, binaryCatalog)) {
+                    dirtyShards.set(0, ShardedCatalog.NUM_SHARDS);
+                }
+                dirty = (BitSet)dirtyShards.clone();
+                dirtyShards.clear();
 
-                    for(String tag : p.getTags()) {
-                        incTag(tag, 1);
+                for(int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                    shards.put(i, new ArrayList<Photo>());
+                }
+                for(Photo p : images.values()) {
+                    if (!shardedCatalog) {
+                        photos.add(p.snapshot());
+                    } else if (dirty.get(ShardedCatalog.shardOf(p))) {
+                        shards.get(ShardedCatalog.shardOf(p)).add(p.snapshot());
                     }
                 }
+                writeSearchRoots(roots);
+            }
+
+            try {
+                if (shardedCatalog) {
+                    ShardedCatalog.write(catalogFile, manifest, shards, binaryCatalog, catalogCompression);
+                } else {
+                    replaceFile(catalogFile, os -> writeCatalog(os, photos, binaryCatalog, catalogCompression));
+                }
+                replaceFile(rootsFile, os -> roots.writeTo(os));
+            } catch (IOException | RuntimeException ex) {
+                synchronized(lock) {
+                    dirtyShards.or(dirty);
+                }
+                setChangedSinceSave();
+                throw ex;
             }
+            lastSaved = System.currentTimeMillis();
 
-            message.accept("Loaded " + count + " of " + readImages.size() + " files");
+            if (journal != null) {
+                journal.truncate(journaled);
+            }
+            if (shardedCatalog) {
+                System.out.println("Saved " + dirty.cardinality() + " of " + ShardedCatalog.NUM_SHARDS + " shards");
+            }
         }
+    }
 
-        setChanged();
-        notifyObservers();
+    interface Contents {
+        void write(OutputStream os) throws IOException;
+    }
+
+    // Write a file to a temporary file, and move that over it.
+    static void replaceFile(File f, Contents contents) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            BufferedOutputStream os = new BufferedOutputStream(fos, 1 << 16);
+            contents.write(os);
+            os.flush();
+            fos.getChannel().force(false);
+        }
+
+        try {
+            Files.move(tmp.toPath(), f.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Run on a thread of its own when the journal has grown large.
+    private void compactJournal() {
+        long start = System.currentTimeMillis();
+        try {
+            saveSnapshot();
+            System.out.println("Compacted journal in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not compact journal: " + ex.toString());
+        }
+    }
+
+    private void flushJournal() {
+        try {
+            if (journal != null) {
+                journal.flush();
+            }
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not write journal: " + ex.toString());
+        }
+    }
+
+    // Persisted file facts are trusted for now, and checked afterwards in
+    // the background.
+    private void insertLoaded(List<Photo> batch) {
+        synchronized(lock) {
+            for(Photo p : batch) {
+                if (!images.containsKey(p.getFile())) {
+                    images.put(p.getFile(), p);
+                    duplicates.add(p);
+                    index(p);
+                }
+            }
+        }
+    }
+
+    // Check all files against the catalog in the background.
+    public void startVerifier() {
+        if (verifier != null) {
+            verifier.cancel();
+        }
+        verifier = new FileVerifier(this, get());
+        verifier.start();
     }
 
     // -- internal --
 
+    @Nullable Photo getPhoto(File f) {
+        synchronized(lock) {
+            return images.get(f);
+        }
+    }
+
+    boolean contains(File f) {
+        synchronized(lock) {
+            return images.containsKey(f);
+        }
+    }
+
+    // Add a fully-constructed photo.  Photo construction reads the file and
+    // must be done before calling this, outside of the lock.
     // Caller should notify observers.
-    private void importFile(File f) {
+    void insert(Photo p) {
         synchronized(lock) {
-            if (!images.containsKey(f)) {
-                Photo p = new Photo(f, this);
-                images.put(f, p);
-                addToDeduplication(p);
+            if (!images.containsKey(p.getFile())) {
+                images.put(p.getFile(), p);
+                duplicates.add(p);
+                index(p);
+                markDirty(p);
 
                 setChangedSinceSave();
                 setChanged();
@@ -365,16 +1133,48 @@ public class Database extends Observable {
         }
     }
 
-    private void rescan() {
-        // TODO
+    // Give a photo an ordinal, and add its tags to the index.  Call with
+    // the lock held.
+    private void index(Photo p) {
+        p.ordinal = ordinals.size();
+        ordinals.add(p);
+        allPhotos.add(p.ordinal);
+        for(int id : p.tagIds) {
+            updateTag(p, id, true);
+        }
+    }
+
+    // Call with the lock held, after removing the photo's tags.
+    private void unindex(Photo p) {
+        if (p.ordinal >= 0) {
+            ordinals.set(p.ordinal, null);
+            allPhotos.remove(p.ordinal);
+            p.ordinal = -1;
+        }
+    }
 
-        notifyObservers();
+    // Returns true if the photo's status changed.
+    boolean setMissing(Photo p, boolean missing) {
+        if (p.missing == missing) {
+            return false;
+        }
+        p.missing = missing;
+        return true;
     }
 
-    // Called if when any image in the database has been modified.
+    // Called if when any image in the database has been modified, in a way
+    // that the journal doesn't record.
 
     public void setChangedSinceSave() {
         modified = true;
+        lastChanged = System.currentTimeMillis();
+    }
+
+    // Note that a photo's shard needs to be saved.
+    void markDirty(Photo p) {
+        synchronized(lock) {
+            dirtyShards.set(ShardedCatalog.shardOf(p));
+        }
     }
     public void clearChangedSinceSave() {
         modified = false;
@@ -0,0 +1,188 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+// Incremental scan of a directory tree.
+//
+// Directories whose modification time matches the recorded one are not
+// listed again; the scan just descends into their recorded subdirectories.
+// Changed or new directories are listed: new image files are submitted to
+// the import pipeline, and photos whose files have vanished are marked
+// missing.
+//
+// What was seen in the listed directories is only recorded by saveState(),
+// once the pipeline has imported their files.  Otherwise a save made
+// mid-scan could hold a directory without its new photos, and later scans
+// would skip them for good.
+class DirectoryScanner {
+
+    private final Database db;
+    private final SearchRoots state;
+    private final ImportPipeline pipeline;
+
+    // Known photos, by directory
+    private final Map<File, List<Photo>> photosByDir = new HashMap<File, List<Photo>>();
+
+    // The directories listed so far, by path, until saveState()
+    private final Map<String, SearchRoots.DirState> listed =
+            new HashMap<String, SearchRoots.DirState>();
+
+    // Read by the progress reporter while scanning
+    volatile int numDirsListed = 0;
+    volatile int numDirsSkipped = 0;
+    volatile int numFilesFound = 0;
+    volatile int numMissing = 0;
+
+    DirectoryScanner(Database db, SearchRoots state, ImportPipeline pipeline) {
+        this.db = db;
+        this.state = state;
+        this.pipeline = pipeline;
+
+        for(Photo p : db.get()) {
+            File dir = p.getFile().getParentFile();
+            List<Photo> list = photosByDir.get(dir);
+            if (list == null) {
+                list = new ArrayList<Photo>();
+                photosByDir.put(dir, list);
+            }
+            list.add(p);
+        }
+    }
+
+    int getNumDirs() { return numDirsListed + numDirsSkipped; }
+
+    void scan(File dir) {
+        scan(dir, true);
+    }
+
+    // Scan a single directory, descending only into subdirectories that
+    // weren't there before.  Used for directories known to have changed.
+    void scanChanged(File dir) {
+        scan(dir, false);
+    }
+
+    // Record the directories listed, once the pipeline has finished
+    // importing their files.
+    void saveState() {
+        if (listed.isEmpty()) {
+            return;
+        }
+        state.dirs.putAll(listed);
+        listed.clear();
+        db.setChangedSinceSave();
+    }
+
+    private void scan(File dir, boolean recursive) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(dir.toPath(), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ex) {
+            attrs = null;
+        }
+        if (attrs == null || !attrs.isDirectory()) {
+            forget(dir);
+            return;
+        }
+
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        SearchRoots.DirState prev = listed.get(dir.getPath());
+        if (prev == null) {
+            prev = state.dirs.get(dir.getPath());
+        }
+
+        List<String> subdirs;
+        if (prev != null && prev.lastModified == lastModified) {
+            numDirsSkipped += 1;
+            subdirs = prev.subdirs;
+        } else {
+            numDirsListed += 1;
+            subdirs = list(dir, prev);
+            if (subdirs == null) {
+                return;
+            }
+            listed.put(dir.getPath(), new SearchRoots.DirState(lastModified, subdirs));
+        }
+
+        for(String name : subdirs) {
+            if (recursive || prev == null || !prev.subdirs.contains(name)) {
+                scan(new File(dir, name));
+            }
+        }
+    }
+
+    // List a directory: import new files and mark vanished ones.
+    // Returns the subdirectory names, or null if it couldn't be listed.
+    private List<String> list(File dir, SearchRoots.DirState prev) {
+        List<String> subdirs = new ArrayList<String>();
+        Set<File> present = new HashSet<File>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+            for(Path entry : entries) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException ex) {
+                    // Probably deleted since the directory was listed
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    subdirs.add(entry.getFileName().toString());
+                } else if (attrs.isRegularFile() && Database.isImageExtension(entry.toString())) {
+                    File f = entry.toFile();
+                    present.add(f);
+                    numFilesFound += 1;
+                    pipeline.submit(f);
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not list " + dir + ": " + ex.toString());
+            return null;
+        }
+
+        List<Photo> known = photosByDir.get(dir);
+        if (known != null) {
+            for(Photo p : known) {
+                boolean missing = !present.contains(p.getFile());
+                if (db.setMissing(p, missing) && missing) {
+                    numMissing += 1;
+                }
+            }
+        }
+
+        if (prev != null) {
+            for(String name : prev.subdirs) {
+                if (!subdirs.contains(name)) {
+                    forget(new File(dir, name));
+                }
+            }
+        }
+
+        return subdirs;
+    }
+
+    // A directory is gone: everything below it is missing.
+    private void forget(File dir) {
+        String prefix = dir.getPath() + File.separator;
+
+        state.dirs.keySet().removeIf(path -> path.equals(dir.getPath()) || path.startsWith(prefix));
+        listed.keySet().removeIf(path -> path.equals(dir.getPath()) || path.startsWith(prefix));
+
+        for(Map.Entry<File, List<Photo>> e : photosByDir.entrySet()) {
+            File d = e.getKey();
+            if (d.equals(dir) || d.getPath().startsWith(prefix)) {
+                for(Photo p : e.getValue()) {
+                    if (db.setMissing(p, true)) {
+                        numMissing += 1;
+                    }
+                }
+            }
+        }
+        db.setChangedSinceSave();
+    }
+}
@@ -0,0 +1,209 @@
+package model;
+
+import java.util.*;
+
+// Groups of photos with identical contents.
+//
+// Copies are found in tiers, each more expensive than the last:
+//
+// 1. File size.  Only files that share a size can be copies of each other.
+// 2. Partial hash, of the first and last 64 KB of the file.  This is
+//    computed during import from bytes that are read anyway.
+// 3. Content hash, of the whole file (see Photo.computeContentHash).  It is
+//    128 bits, so unlike a CRC32 it can be trusted to tell different photos
+//    apart.  Only files whose size and partial hash both match need it.
+//
+// Each tier is persisted, and computed on demand: photos that need a hash
+// they don't have yet are kept apart as "unresolved" until
+// Database.resolveDuplicates computes it, outside of the database lock.
+// In a library of mostly unique photos, that costs almost no I/O.
+//
+// Every photo refers to its group, so lookups don't search anything, and
+// adding or removing a photo only touches its own group and size bucket.
+//
+// Each group has a canonical copy.  It is the one the user made the main
+// copy (see Photo.mainCopy), or otherwise the first one added.
+//
+// Not thread-safe; guarded by the database lock.
+class DuplicateIndex {
+
+    static class Group {
+        final long size;
+        // Null if the photo hasn't been hashed (it's unique by size, or
+        // unresolved)
+        final String hash;
+        final List<Photo> copies = new ArrayList<Photo>(1);
+        Photo canonical;
+
+        Group(long size, String hash) {
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private final Map<Long, List<Photo>> bySize = new HashMap<Long, List<Photo>>();
+    private final Map<String, Group> byHash = new HashMap<String, Group>();
+    private final Set<Photo> unresolved = new LinkedHashSet<Photo>();
+    private int numGroups = 0;
+
+    int numGroups() { return numGroups; }
+
+    void add(Photo p) {
+        List<Photo> sameSize = bySize.get(p.fileSize);
+        if (sameSize == null) {
+            sameSize = new ArrayList<Photo>(1);
+            bySize.put(p.fileSize, sameSize);
+        }
+        sameSize.add(p);
+
+        join(p);
+        findUnresolved(sameSize);
+    }
+
+    void remove(Photo p) {
+        Group g = p.group;
+        if (g == null) {
+            return;
+        }
+        leave(p);
+        unresolved.remove(p);
+
+        List<Photo> sameSize = bySize.get(g.size);
+        if (sameSize != null) {
+            sameSize.remove(p);
+            if (sameSize.isEmpty()) {
+                bySize.remove(g.size);
+            }
+        }
+    }
+
+    // Move a photo whose file was re-read into the right group.
+    void update(Photo p) {
+        Group g = p.group;
+        if (g != null && g.hash != null && g.size == p.fileSize && g.hash.equals(p.contentHash)) {
+            // Same contents
+            return;
+        }
+        remove(p);
+        add(p);
+    }
+
+    // Make a photo the canonical copy of its group.  Returns the members of
+    // the group.
+    List<Photo> setCanonical(Photo p) {
+        Group g = p.group;
+        if (g == null) {
+            return Collections.emptyList();
+        }
+        for(Photo q : g.copies) {
+            q.mainCopy = false;
+        }
+        p.mainCopy = true;
+        g.canonical = p;
+        return new ArrayList<Photo>(g.copies);
+    }
+
+    // Take the photos that need a partial or content hash before they can be
+    // grouped.
+    List<Photo> takeUnresolved() {
+        List<Photo> result = new ArrayList<Photo>(unresolved);
+        unresolved.clear();
+        return result;
+    }
+
+    // Regroup a photo once its partial or content hash is known.
+    void resolved(Photo p) {
+        if (p.group == null) {
+            return;
+        }
+        if (p.contentHash != null && p.group.hash == null) {
+            leave(p);
+            join(p);
+        }
+        findUnresolved(bySize.get(p.group.size));
+    }
+
+    void clear() {
+        bySize.clear();
+        byHash.clear();
+        unresolved.clear();
+        numGroups = 0;
+    }
+
+    // --- internal ---
+
+    // Among photos of the same size, find those that need to be hashed
+    // before it is known whether they are copies.
+    private void findUnresolved(List<Photo> sameSize) {
+        if (sameSize == null || sameSize.size() < 2) {
+            return;
+        }
+
+        boolean allHashed = true;
+        for(Photo q : sameSize) {
+            allHashed &= (q.contentHash != null);
+        }
+        if (allHashed) {
+            return;
+        }
+
+        // Every one needs a partial hash ...
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for(Photo q : sameSize) {
+            if (q.partialHash == null) {
+                unresolved.add(q);
+            } else {
+                counts.merge(q.partialHash, 1, Integer::sum);
+            }
+        }
+        // ... and those with matching partial hashes need a content hash.
+        for(Photo q : sameSize) {
+            if (q.partialHash != null && q.contentHash == null && counts.get(q.partialHash) > 1) {
+                unresolved.add(q);
+            }
+        }
+    }
+
+    private void join(Photo p) {
+        Group g = null;
+        if (p.contentHash != null) {
+            g = byHash.get(p.contentHash);
+            if (g == null) {
+                g = new Group(p.fileSize, p.contentHash);
+                byHash.put(g.hash, g);
+                numGroups += 1;
+            }
+        } else {
+            // Unique so far
+            g = new Group(p.fileSize, null);
+            numGroups += 1;
+        }
+        g.copies.add(p);
+        p.group = g;
+
+        if (g.canonical == null || (p.mainCopy && !g.canonical.mainCopy)) {
+            g.canonical = p;
+        }
+    }
+
+    private void leave(Photo p) {
+        Group g = p.group;
+        p.group = null;
+        g.copies.remove(p);
+        if (g.copies.isEmpty()) {
+            numGroups -= 1;
+            if (g.hash != null) {
+                byHash.remove(g.hash);
+            }
+        }
+
+        if (g.canonical == p) {
+            g.canonical = null;
+            for(Photo q : g.copies) {
+                if (g.canonical == null || (q.mainCopy && !g.canonical.mainCopy)) {
+                    g.canonical = q;
+                }
+            }
+        }
+    }
+}
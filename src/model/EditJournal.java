@@ -0,0 +1,362 @@
+package model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Append-only journal of edits made since the catalog was last saved.
+//
+// Edits to favorites, captions, rotation, tags and main copies are
+// appended here as small records instead of marking the whole catalog for
+// rewriting.  Records are buffered and written out and fsynced in batches,
+// FLUSH_MS after the first unwritten one, so a crash loses at most the
+// last batch.  At load, the journal is replayed on top of the catalog.
+//
+// Writing a snapshot of the catalog makes the journal redundant, and it is
+// emptied (see Database.saveSnapshot).  Once it grows past COMPACT_BYTES,
+// the database writes a snapshot on a separate thread, so that edits keep
+// being flushed meanwhile.
+//
+// Each record is:
+//   int     length of the payload
+//   int     CRC32 of the payload
+//   payload: byte type, string path, then the value for the type
+// A string is an int length followed by UTF-8 bytes, or a length of -1
+// for null.  A torn record at the end, from a crash mid-write, is dropped.
+class EditJournal {
+
+    static final long FLUSH_MS = 1000;
+    static final long COMPACT_BYTES = 4 << 20;
+
+    private static final byte FAVORITE = 1;
+    private static final byte CAPTION = 2;
+    private static final byte ROTATION = 3;
+    private static final byte ADD_TAG = 4;
+    private static final byte REMOVE_TAG = 5;
+    private static final byte REMOVE_ALL_TAGS = 6;
+    private static final byte MAIN_COPY = 7;
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-writer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final File file;
+    // Reopened when the journal is truncated; guarded by 'fileLock'
+    private FileChannel channel;
+    private final Object fileLock = new Object();
+    private final Runnable onCompact;
+
+    // Records not yet written; guarded by 'this'
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean flushScheduled = false;
+    private boolean compacting = false;
+
+    // 'onCompact' is run on a thread of its own when the journal is large.
+    EditJournal(File file, Runnable onCompact) throws IOException {
+        this.file = file;
+        this.onCompact = onCompact;
+        channel = open(file);
+    }
+
+    // --- recording edits ---
+
+    void favorite(Photo p, boolean val) {
+        append(FAVORITE, p, out -> out.writeBoolean(val));
+    }
+
+    void caption(Photo p, String val) {
+        append(CAPTION, p, out -> writeString(out, val));
+    }
+
+    void rotation(Photo p, int angle) {
+        append(ROTATION, p, out -> out.writeInt(angle));
+    }
+
+    void addTag(Photo p, String tag) {
+        append(ADD_TAG, p, out -> writeString(out, tag));
+    }
+
+    void removeTag(Photo p, String tag) {
+        append(REMOVE_TAG, p, out -> writeString(out, tag));
+    }
+
+    void removeAllTags(Photo p) {
+        append(REMOVE_ALL_TAGS, p, out -> { });
+    }
+
+    void mainCopy(Photo p) {
+        append(MAIN_COPY, p, out -> { });
+    }
+
+    // Write out and fsync all pending edits.  If that fails they are kept,
+    // ahead of any made since, to be written by the next flush.
+    void flush() throws IOException {
+        synchronized(fileLock) {
+            byte[] data;
+            synchronized(this) {
+                data = pending.toByteArray();
+                pending.reset();
+                flushScheduled = false;
+            }
+            if (data.length == 0) {
+                return;
+            }
+
+            long start = channel.size();
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(data);
+                while (bb.hasRemaining()) {
+                    channel.write(bb, start + bb.position());
+                }
+                channel.force(false);
+            } catch (IOException ex) {
+                // Don't leave part of a record for the retry to follow,
+                // or replaying would stop there
+                try {
+                    channel.truncate(start);
+                } catch (IOException ex2) {
+                    // Ignore
+                }
+                synchronized(this) {
+                    ByteArrayOutputStream kept = new ByteArrayOutputStream(data.length + pending.size());
+                    kept.write(data, 0, data.length);
+                    pending.writeTo(kept);
+                    pending = kept;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    // Drop the edits that are in a snapshot of the catalog.  Edits made
+    // while the snapshot was written must be kept: pass the journal size
+    // from before the snapshot, and anything written after it is kept.
+    //
+    // Those are written to a new file that replaces the journal, so a
+    // crash leaves either the old journal or the new one, never a journal
+    // without them.
+    void truncate(long upTo) throws IOException {
+        synchronized(fileLock) {
+            long size = channel.size();
+            ByteBuffer rest = ByteBuffer.allocate((int)(size - upTo));
+            while (rest.hasRemaining() && channel.read(rest, upTo + rest.position()) >= 0) {
+                // Read all of it
+            }
+
+            // Some systems can't replace a file that is open
+            channel.close();
+            try {
+                Database.replaceFile(file, os -> os.write(rest.array(), 0, rest.position()));
+            } finally {
+                channel = open(file);
+            }
+        }
+    }
+
+    long size() throws IOException {
+        synchronized(fileLock) {
+            return channel.size();
+        }
+    }
+
+    // Apply all edits in the journal to the database.  Returns the number of
+    // edits applied.  Edits are idempotent, so it is harmless if some are
+    // already in the catalog.  Call with the database lock held.
+    int replay(Database db) throws IOException {
+        int numApplied = 0;
+        long valid = 0;
+
+        synchronized(fileLock) {
+            long size = channel.size();
+            ByteBuffer bb = ByteBuffer.allocate((int)size);
+            while (bb.hasRemaining() && channel.read(bb, bb.position()) >= 0) {
+                // Read all of it
+            }
+            bb.flip();
+
+            while (bb.remaining() >= 8) {
+                int length = bb.getInt();
+                int crc = bb.getInt();
+                if (length < 0 || length > bb.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                bb.get(payload);
+
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int)check.getValue() != crc) {
+                    break;
+                }
+                valid = bb.position();
+
+                if (apply(db, new DataInputStream(new ByteArrayInputStream(payload)))) {
+                    numApplied += 1;
+                }
+            }
+
+            if (valid < size) {
+                System.out.println("Journal: dropping " + (size - valid) + " bytes of incomplete edits");
+                channel.truncate(valid);
+            }
+        }
+        return numApplied;
+    }
+
+    // --- internal ---
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte type, Photo p, Writer value) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(payload);
+        try {
+            out.writeByte(type);
+            writeString(out, p.getFile().getPath());
+            value.write(out);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+
+            synchronized(this) {
+                DataOutputStream record = new DataOutputStream(pending);
+                record.writeInt(payload.size());
+                record.writeInt((int)crc.getValue());
+                payload.writeTo(record);
+
+                scheduleFlush();
+            }
+        } catch (IOException ex) {
+            // Can't happen for in-memory streams
+        }
+    }
+
+    // Call with 'this' locked
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flushInBackground, FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            flush();
+
+            // flush() locks the file before 'this', so don't hold 'this'
+            // while getting the size
+            long size = size();
+            boolean compact;
+            synchronized(this) {
+                compact = !compacting && size > COMPACT_BYTES;
+                compacting |= compact;
+            }
+            if (compact) {
+                Thread t = new Thread(() -> {
+                    try {
+                        onCompact.run();
+                    } finally {
+                        synchronized(this) {
+                            compacting = false;
+                        }
+                    }
+                }, "journal-compactor");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not write journal " + file + ": " + ex.toString());
+            // The edits are still pending; try again
+            synchronized(this) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    private static boolean apply(Database db, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        Photo p = db.getPhoto(new File(readString(in)));
+        if (p == null) {
+            // Removed since
+            return false;
+        }
+
+        // Its shard has to be saved before the journal is emptied
+        db.markDirty(p);
+
+        switch (type) {
+        case FAVORITE:
+            p.favorite = in.readBoolean();
+            return true;
+        case CAPTION:
+            p.caption = readString(in);
+            return true;
+        case ROTATION:
+            p.rotation = in.readInt();
+            return true;
+        case ADD_TAG: {
+            int id = TagDictionary.get().intern(readString(in));
+            if (p.addTagId(id)) {
+                db.tagChanged(p, id, true);
+            }
+            return true;
+        }
+        case REMOVE_TAG: {
+            int id = TagDictionary.get().lookup(readString(in));
+            if (id >= 0 && p.removeTagId(id)) {
+                db.tagChanged(p, id, false);
+            }
+            return true;
+        }
+        case REMOVE_ALL_TAGS:
+            int[] ids = p.tagIds;
+            p.tagIds = Photo.NO_TAGS;
+            for(int id : ids) {
+                db.tagChanged(p, id, false);
+            }
+            return true;
+        case MAIN_COPY:
+            for(Photo q : db.duplicates.setCanonical(p)) {
+                db.markDirty(q);
+            }
+            return true;
+        default:
+            System.out.println("WARNING: Unknown journal record type " + type);
+            return false;
+        }
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
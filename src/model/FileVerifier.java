@@ -0,0 +1,93 @@
+package model;
+
+import java.util.*;
+
+// Background check of persisted file facts.
+//
+// At startup, the catalog's persisted hash, size, modification time,
+// dimensions and date are trusted as-is, so the catalog is usable right
+// away.  This pass then stats every file at low priority, marks missing
+// files, and re-reads only those whose size or modification time changed.
+// Perceptual hashes missing from older catalogs are filled in as well.
+class FileVerifier implements Runnable {
+
+    private final Database db;
+    private final List<Photo> photos;
+    private volatile boolean cancelled = false;
+
+    FileVerifier(Database db, Collection<Photo> photos) {
+        this.db = db;
+        this.photos = new ArrayList<Photo>(photos);
+    }
+
+    void start() {
+        Thread t = new Thread(this, "file-verifier");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        int numChanged = 0;
+        int numRehashed = 0;
+        // Photos whose persisted facts were re-read, hashes or not
+        int numUpdated = 0;
+
+        // Group photos of the same size that were never hashed, e.g. from
+        // an older catalog
+        db.resolveDuplicates();
+
+        for(Photo p : photos) {
+            if (cancelled) {
+                return;
+            }
+
+            int oldHash = p.getHash();
+            long oldModified = p.lastModified;
+            long oldSize = p.fileSize;
+            if (p.verify()) {
+                numChanged += 1;
+                db.rehash(p);
+                if (p.getHash() != oldHash) {
+                    numRehashed += 1;
+                }
+                // A touched file can keep its hash, but the new time and
+                // size still need saving, or it is re-read at every start
+                if (p.lastModified != oldModified || p.fileSize != oldSize) {
+                    numUpdated += 1;
+                }
+            } else if (p.perceptualHash == null && !p.isMissing() && !p.isInvalid()) {
+                // From a catalog that predates perceptual hashes
+                if (p.computePerceptualHash()) {
+                    db.rehash(p);
+                    numRehashed += 1;
+                    numUpdated += 1;
+                }
+            }
+        }
+        db.resolveDuplicates();
+
+        // Every file's facts are current now, so stored thumbnails that
+        // don't match them are for files that changed or are gone
+        if (db.getThumbnailStore() != null) {
+            db.getThumbnailStore().compact(db.get());
+        }
+
+        if (numUpdated > 0) {
+            db.setChangedSinceSave();
+        }
+        if (numChanged > 0) {
+            db.publishChanges();
+        }
+
+        System.out.println("Verified " + photos.size() + " files in " +
+                (System.currentTimeMillis() - startTime) + " ms: " +
+                numChanged + " changed, " + numRehashed + " re-hashed");
+    }
+}
@@ -0,0 +1,219 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Live watching of the search roots.
+//
+// Every directory below the roots is registered with a WatchService.  Events
+// are coalesced until the file system has been quiet for QUIET_MS (or for at
+// most MAX_DELAY_MS), and then applied to the database as one small batch:
+// directories with created or deleted entries are rescanned without
+// recursion, and changed files are re-read, metadata included, if their
+// size or modification time changed.
+class FolderWatcher implements Runnable {
+
+    static final long QUIET_MS = 500;
+    static final long MAX_DELAY_MS = 5000;
+
+    private final Database db;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+    private final Set<Path> registered = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped = false;
+
+    FolderWatcher(Database db) throws IOException {
+        this.db = db;
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    void start() {
+        Thread t = new Thread(this, "folder-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void stop() {
+        stopped = true;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+    }
+
+    // Register every directory recorded under the search roots.  Directories
+    // that were never scanned are found by walking the tree.
+    void registerKnownDirs() {
+        for(File root : db.getSearchRoots()) {
+            if (!db.searchRoots.dirs.containsKey(root.getPath())) {
+                registerTree(root.toPath());
+            }
+        }
+        for(String dir : db.searchRoots.dirs.keySet()) {
+            register(Paths.get(dir));
+        }
+    }
+
+    @Override
+    public void run() {
+        // Catch up with anything that changed while we weren't watching
+        applyBatch(new LinkedHashSet<Path>(), new LinkedHashSet<Path>(), toPaths(db.getSearchRoots()));
+        registerKnownDirs();
+
+        try {
+            while (!stopped) {
+                Set<Path> dirs = new LinkedHashSet<Path>();
+                Set<Path> files = new LinkedHashSet<Path>();
+                Set<Path> overflowed = new LinkedHashSet<Path>();
+
+                collect(watchService.take(), dirs, files, overflowed);
+
+                // Coalesce bursts of events into one batch
+                long start = System.currentTimeMillis();
+                while (System.currentTimeMillis() - start < MAX_DELAY_MS) {
+                    WatchKey key = watchService.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    collect(key, dirs, files, overflowed);
+                }
+
+                applyBatch(dirs, files, overflowed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped
+        }
+    }
+
+    // --- internal ---
+
+    private void collect(WatchKey key, Set<Path> dirs, Set<Path> files, Set<Path> overflowed) {
+        Path dir = keys.get(key);
+
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (event.kind() == OVERFLOW) {
+                // Events were lost; this directory needs a full scan
+                overflowed.add(dir);
+                continue;
+            }
+
+            Path child = dir.resolve((Path)event.context());
+            boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+
+            if (event.kind() != ENTRY_MODIFY) {
+                // An entry was added or removed
+                dirs.add(dir);
+            }
+            if (event.kind() == ENTRY_CREATE && isDir) {
+                registerTree(child);
+            }
+            if (!isDir && event.kind() != ENTRY_DELETE) {
+                // New or replaced files may already be in the database
+                files.add(child);
+            }
+        }
+
+        if (!key.reset()) {
+            // Directory is gone
+            keys.remove(key);
+            if (dir != null) {
+                registered.remove(dir);
+            }
+        }
+    }
+
+    private void applyBatch(Set<Path> dirs, Set<Path> files, Set<Path> overflowed) {
+        long startTime = System.currentTimeMillis();
+
+        ImportPipeline pipeline = new ImportPipeline(db);
+        DirectoryScanner scanner = new DirectoryScanner(db, db.searchRoots, pipeline);
+        boolean finished = false;
+        try {
+            for(Path dir : overflowed) {
+                scanner.scan(dir.toFile());
+            }
+            for(Path dir : dirs) {
+                scanner.scanChanged(dir.toFile());
+            }
+        } finally {
+            finished = pipeline.finish();
+        }
+        if (finished) {
+            scanner.saveState();
+        }
+
+        int numRefreshed = 0;
+        for(Path f : files) {
+            Photo p = db.getPhoto(f.toFile());
+            if (p == null) {
+                continue;
+            }
+            // Re-reads the whole file, like refresh(), but also notices
+            // one that was missing and is back
+            if (p.verify()) {
+                numRefreshed += 1;
+                db.rehash(p);
+            }
+        }
+        db.resolveDuplicates();
+
+        if (pipeline.getNumCompleted() > 0 || scanner.numMissing > 0 || numRefreshed > 0) {
+            db.setChangedSinceSave();
+            db.publishChanges();
+
+            System.out.println("Watcher: imported " + pipeline.getNumCompleted() +
+                    ", refreshed " + numRefreshed + ", " + scanner.numMissing +
+                    " newly missing in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private void registerTree(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not watch " + root + ": " + ex.toString());
+        }
+    }
+
+    private void register(Path dir) {
+        if (!registered.add(dir)) {
+            return;
+        }
+        try {
+            keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        } catch (IOException | ClosedWatchServiceException ex) {
+            registered.remove(dir);
+            System.out.println("WARNING: Could not watch " + dir + ": " + ex.toString());
+        }
+    }
+
+    private static Set<Path> toPaths(List<File> files) {
+        Set<Path> paths = new LinkedHashSet<Path>();
+        for(File f : files) {
+            paths.add(f.toPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,94 @@
+package model;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+// Staged import of image files into a database.
+//
+// Stage 1 (the caller) discovers files and submits them.
+// Stage 2 is a bounded pool of workers that construct Photo objects.  This
+//         is where all the expensive work happens (decode, hash, EXIF), and
+//         it is done without holding the database lock.
+// Stage 3 is Database.insert(), a short critical section that only updates
+//         the image map and the deduplication structure.
+// Stage 4 (finish) hashes any new photos that share a size with another
+//         one, to confirm or rule out duplicates.
+//
+// The work queue is bounded; when it is full the discovery thread runs the
+// import itself, which throttles discovery to the speed of the workers.
+class ImportPipeline {
+
+    static final int NUM_WORKERS =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int QUEUE_DEPTH = NUM_WORKERS * 4;
+
+    private final Database db;
+    private final ThreadPoolExecutor workers;
+    @Nullable private final ProgressReporter progress;
+
+    private final AtomicInteger numCompleted = new AtomicInteger();
+
+    ImportPipeline(Database db) {
+        this(db, null);
+    }
+
+    ImportPipeline(Database db, @Nullable ProgressReporter progress) {
+        this.db = db;
+        this.progress = progress;
+
+        workers = new ThreadPoolExecutor(
+                NUM_WORKERS, NUM_WORKERS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_DEPTH),
+                r -> {
+                    Thread t = new Thread(r, "import-worker");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // Queue a file for import.  Files already in the database are skipped.
+    void submit(File f) {
+        if (db.contains(f)) {
+            if (progress != null) {
+                progress.fileSkipped();
+            }
+            return;
+        }
+
+        workers.execute(() -> {
+            long bytes = 0;
+            try {
+                Photo p = new Photo(f, db);
+                bytes = p.getFileSize();
+                db.insert(p);
+            } finally {
+                numCompleted.incrementAndGet();
+                if (progress != null) {
+                    progress.fileDone(bytes);
+                }
+            }
+        });
+    }
+
+    // Wait for all submitted files to be imported.  Returns false if
+    // interrupted first, when some of them may not have been.
+    boolean finish() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        db.resolveDuplicates();
+        return true;
+    }
+
+    int getNumCompleted() { return numCompleted.get(); }
+}
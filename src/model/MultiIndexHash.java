@@ -0,0 +1,118 @@
+package model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// Finds the perceptual hashes within a Hamming distance of each other, for
+// grouping near duplicates, by multi-index hashing.
+//
+// Each 64-bit hash is split into BLOCKS blocks of 16 bits.  If two hashes
+// are within distance k, the differing bits are spread over the blocks, so
+// at least one block differs by at most k / BLOCKS bits.  The candidates
+// for a hash are therefore the hashes with a block equal to one of its own
+// blocks, give or take that many bits, and there is a table for each block
+// that finds those with an array lookup.  With k = 10 that is 137 lookups
+// per block, and each finds about n / 65536 hashes to check.  A BK-tree,
+// by contrast, visits most of its nodes once k is more than a few bits.
+//
+// Built once over a fixed array of hashes, for one distance.  Not
+// thread-safe.
+class MultiIndexHash {
+
+    static final int BLOCKS = 4;
+    static final int BLOCK_BITS = PerceptualHash.BITS / BLOCKS;
+    private static final int BLOCK_VALUES = 1 << BLOCK_BITS;
+
+    private final long[] hashes;
+    private final int maxDistance;
+    // The changes to try to each block
+    private final int[] masks;
+    // For each block, the indices of the hashes sorted by that block's
+    // value, the hashes in the same order, and where the run for each
+    // value starts.  A run's hashes are together, so checking them doesn't
+    // jump around memory.
+    private final int[][] members = new int[BLOCKS][];
+    private final long[][] sorted = new long[BLOCKS][];
+    private final int[][] starts = new int[BLOCKS][];
+
+    // Hashes already found in the current search, by index
+    private final int[] seen;
+    private int stamp = 0;
+
+    MultiIndexHash(long[] hashes, int maxDistance) {
+        this.hashes = hashes;
+        this.maxDistance = maxDistance;
+        masks = masks(maxDistance);
+        seen = new int[hashes.length];
+
+        // A counting sort for each block
+        for(int b = 0; b < BLOCKS; b++) {
+            int[] start = new int[BLOCK_VALUES + 1];
+            for(long hash : hashes) {
+                start[block(hash, b) + 1] += 1;
+            }
+            for(int v = 0; v < BLOCK_VALUES; v++) {
+                start[v + 1] += start[v];
+            }
+            int[] next = start.clone();
+            int[] member = new int[hashes.length];
+            long[] sort = new long[hashes.length];
+            for(int i = 0; i < hashes.length; i++) {
+                int m = next[block(hashes[i], b)]++;
+                member[m] = i;
+                sort[m] = hashes[i];
+            }
+            members[b] = member;
+            sorted[b] = sort;
+            starts[b] = start;
+        }
+    }
+
+    // Calls 'consumer' with the index of each hash within maxDistance of
+    // hashes[i], other than i itself.
+    void forEachNeighbor(int i, IntConsumer consumer) {
+        long hash = hashes[i];
+        stamp += 1;
+        seen[i] = stamp;
+        for(int b = 0; b < BLOCKS; b++) {
+            int[] member = members[b];
+            long[] sort = sorted[b];
+            int[] start = starts[b];
+            int value = block(hash, b);
+            for(int mask : masks) {
+                int key = value ^ mask;
+                for(int m = start[key]; m < start[key + 1]; m++) {
+                    if (PerceptualHash.distance(hash, sort[m]) > maxDistance) {
+                        continue;
+                    }
+                    // Close enough; it may match in more than one block
+                    int j = member[m];
+                    if (seen[j] != stamp) {
+                        seen[j] = stamp;
+                        consumer.accept(j);
+                    }
+                }
+            }
+        }
+    }
+
+    // --- internal ---
+
+    // Every value of BLOCK_BITS bits with at most maxDistance / BLOCKS
+    // bits set
+    private static int[] masks(int maxDistance) {
+        int radius = Math.min(BLOCK_BITS, maxDistance / BLOCKS);
+        int n = 0;
+        int[] masks = new int[BLOCK_VALUES];
+        for(int mask = 0; mask < BLOCK_VALUES; mask++) {
+            if (Integer.bitCount(mask) <= radius) {
+                masks[n++] = mask;
+            }
+        }
+        return Arrays.copyOf(masks, n);
+    }
+
+    private static int block(long hash, int b) {
+        return (int)(hash >>> (b * BLOCK_BITS)) & (BLOCK_VALUES - 1);
+    }
+}
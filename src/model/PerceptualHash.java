@@ -0,0 +1,124 @@
+package model;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+// Difference hash ("dHash") of an image.
+//
+// The image is reduced to 9x8 grey pixels, and each bit of the hash says
+// whether a pixel is brighter than its right-hand neighbour.  Resizing,
+// re-encoding and small edits only flip a few bits, so similar images have
+// hashes that are a small Hamming distance apart.
+//
+// It is computed from the thumbnail, which is cheap to decode.  Embedded
+// EXIF previews are often letterboxed to 4:3, so dark borders are trimmed
+// first; otherwise a photo and a copy without the preview would differ.
+class PerceptualHash {
+
+    static final int BITS = 64;
+
+    private static final int DARK = 24;
+
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    // Returns null if the data is not a readable image.
+    static Long dHash(byte[] encoded) {
+        BufferedImage img;
+        try {
+            img = ImageIO.read(new ByteArrayInputStream(encoded));
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+        if (img == null) {
+            return null;
+        }
+        img = trimBorders(img);
+
+        // Draw in two steps, so that the 9x8 pixels average over an area
+        // rather than sampling single pixels.
+        BufferedImage grey = scale(scale(img, 36, 32), 9, 8);
+
+        long hash = 0;
+        for(int y = 0; y < 8; y++) {
+            for(int x = 0; x < 8; x++) {
+                int left = grey.getRaster().getSample(x, y, 0);
+                int right = grey.getRaster().getSample(x + 1, y, 0);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    // --- internal ---
+
+    private static BufferedImage scale(BufferedImage img, int w, int h) {
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    // Remove rows and columns at the edges that are entirely dark, keeping
+    // at least half of the image in each direction.
+    private static BufferedImage trimBorders(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+
+        int top = 0, bottom = h, left = 0, right = w;
+        while (top < h / 4 && isDarkRow(img, top, left, right)) {
+            top++;
+        }
+        while (h - bottom < h / 4 && isDarkRow(img, bottom - 1, left, right)) {
+            bottom--;
+        }
+        while (left < w / 4 && isDarkColumn(img, left, top, bottom)) {
+            left++;
+        }
+        while (w - right < w / 4 && isDarkColumn(img, right - 1, top, bottom)) {
+            right--;
+        }
+
+        if (top == 0 && bottom == h && left == 0 && right == w) {
+            return img;
+        }
+        return img.getSubimage(left, top, right - left, bottom - top);
+    }
+
+    private static boolean isDarkRow(BufferedImage img, int y, int x0, int x1) {
+        for(int x = x0; x < x1; x++) {
+            if (luminance(img.getRGB(x, y)) >= DARK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDarkColumn(BufferedImage img, int x, int y0, int y1) {
+        for(int y = y0; y < y1; y++) {
+            if (luminance(img.getRGB(x, y)) >= DARK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int luminance(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
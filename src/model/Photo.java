@@ -8,19 +8,23 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.annotation.*;
 import com.google.common.hash.*;
-import com.google.common.io.*;
 
 import javafx.scene.image.Image;
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.metadata.*;
+import com.drew.metadata.jpeg.JpegDirectory;
 
 public class Photo extends Observable {
 
     public static final int THUMB_WIDTH = 100;
     public static final int THUMB_HEIGHT = 100;
 
+    static final int[] NO_TAGS = new int[0];
+
     public static final DateTimeFormatter EXIF_DATE_FORMAT =
             DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
 
@@ -28,19 +32,35 @@ public class Photo extends Observable {
     @JsonProperty File file;
     @JsonProperty boolean favorite = false;
     @JsonProperty long lastModified;
+    // Key in the thumbnail store.  Same as partialHash, but older catalogs
+    // have a CRC32 of the whole file.
     @JsonProperty int hash;
     @JsonProperty String caption;
-    @JsonProperty List<String> tags = new LinkedList<String>();
+    // IDs in the TagDictionary, sorted.  Serialized as the tags' names (see
+    // getTags).  Replaced rather than modified, so it can be shared.
+    @JsonIgnore int[] tagIds = NO_TAGS;
     @JsonProperty int rotation = 0;
     @JsonProperty long fileSize;
     @JsonProperty LocalDateTime originalDate;
     @JsonProperty long width = -1, height = -1;
+    // Hash of the ends of the file; see FileBuffer.partialHash
+    @JsonProperty Integer partialHash;
+    // Hash of the whole file.  Computed on demand, when another photo has
+    // the same size and partial hash.
+    @JsonProperty String contentHash;
+    // Chosen by the user as the copy to keep, among identical photos
+    @JsonProperty boolean mainCopy = false;
+    // dHash of the thumbnail, for finding near duplicates
+    @JsonProperty Long perceptualHash;
 
     // Not serialized
     @JsonIgnore boolean invalid = false;
     @JsonIgnore boolean missing = false;
-    @JsonIgnore Image thumbnail;
     @JsonIgnore Database db;
+    @JsonIgnore DuplicateIndex.Group group;
+    // Position in the database, for indexes (see Database.tagIndex); -1 if
+    // not in it
+    @JsonIgnore int ordinal = -1;
 
     // Deserialization only
     public Photo() { }
@@ -48,49 +68,277 @@ public class Photo extends Observable {
     public Photo(File file, Database db) {
         this.file = file;
         this.db = db;
-        readTransient();
-        readMetadata();
+        readAll();
     }
 
     public void setDatabase(Database db) {
         this.db = db;
     }
 
-    // Read data from disk that is not persisted as part of database
-    public void readTransient() {
+    // A copy of the serialized fields, for saving in the background while
+    // this one may be edited.
+    Photo snapshot() {
+        Photo p = new Photo();
+        p.file = file;
+        p.favorite = favorite;
+        p.lastModified = lastModified;
+        p.hash = hash;
+        p.caption = caption;
+        p.tagIds = tagIds;
+        p.rotation = rotation;
+        p.fileSize = fileSize;
+        p.originalDate = originalDate;
+        p.width = width;
+        p.height = height;
+        p.partialHash = partialHash;
+        p.contentHash = contentHash;
+        p.mainCopy = mainCopy;
+        p.perceptualHash = perceptualHash;
+        return p;
+    }
+
+    // Read the thumbnail, hash and metadata.  The file is read from disk
+    // only once, and usually only its head and tail are read at all.
+    public void readAll() {
+        FileBuffer buf = readFile();
+        if (buf == null) {
+            return;
+        }
+        try {
+            Metadata metadata = readMetadata(buf);
+            readTransient(buf, metadata);
+            if (metadata != null) {
+                parseMetadata(metadata);
+            }
+        } finally {
+            buf.release();
+        }
+    }
+
+    // If the file is unchanged since it was last read, the persisted hash is
+    // still valid and the file doesn't need to be read.
+    private boolean isUnchangedOnDisk() {
+        missing = !file.exists();
+        if (missing) {
+            return true;
+        }
+        return file.lastModified() == lastModified && file.length() == fileSize;
+    }
+
+    // Check the file against the persisted facts, re-reading it, metadata
+    // and all, only if its size or modification time changed.  Returns true
+    // if anything changed.
+    boolean verify() {
+        boolean wasMissing = missing;
         if (!file.exists()) {
             missing = true;
-            return;
+            return !wasMissing;
         }
+        missing = false;
 
-        ByteSource bs = Files.asByteSource(file);
+        if (file.lastModified() == lastModified && file.length() == fileSize) {
+            return wasMissing;
+        }
+        readAll();
+        return true;
+    }
 
-        // Read image
-        try(InputStream is = bs.openStream()) {
-            thumbnail = new Image(is, THUMB_WIDTH, THUMB_HEIGHT, true, true /*hi quality*/);
-        } catch(IOException ex) {
-            invalid = true;
+    // Re-read everything from the file, but only if its size or
+    // modification time changed.  Returns true if it was re-read.
+    boolean refresh() {
+        if (isUnchangedOnDisk()) {
+            return false;
+        }
+        readAll();
+        return true;
+    }
+
+    // Produce the thumbnail image: from the thumbnail store if possible,
+    // otherwise from the file.  Doesn't modify the photo.
+    // Called by ThumbnailCache on a background thread.
+    Image loadThumbnail() {
+        ThumbnailStore store = (db != null) ? db.getThumbnailStore() : null;
+        if (store != null) {
+            byte[] data = store.get(hash, fileSize, lastModified);
+            if (data != null) {
+                Image img = Thumbnails.decode(data, THUMB_WIDTH, THUMB_HEIGHT);
+                if (img != null) {
+                    return img;
+                }
+            }
+        }
+
+        Thumbnails.Result thumb = readThumbnail(store);
+        return (thumb != null) ? thumb.image : null;
+    }
+
+    // Compute the perceptual hash, for a photo from a catalog that didn't
+    // have one.  Uses the stored thumbnail if possible.
+    // Returns false if there is no thumbnail to compute it from.
+    boolean computePerceptualHash() {
+        ThumbnailStore store = (db != null) ? db.getThumbnailStore() : null;
+        byte[] data = (store != null) ? store.get(hash, fileSize, lastModified) : null;
+        if (data == null) {
+            Thumbnails.Result thumb = readThumbnail(store);
+            if (thumb == null) {
+                return false;
+            }
+            data = thumb.encoded;
+        }
+        perceptualHash = PerceptualHash.dHash(data);
+        return perceptualHash != null;
+    }
+
+    // Make the thumbnail from the file, without modifying the photo.
+    private Thumbnails.Result readThumbnail(@Nullable ThumbnailStore store) {
+        if (!file.exists()) {
+            return null;
         }
+        boolean unchanged = file.lastModified() == lastModified && file.length() == fileSize;
 
-        // Read hash
+        FileBuffer buf = FileBuffer.get();
         try {
-            hash = bs.hash(Hashing.crc32()).asInt();
+            buf.readHead(file, FileBuffer.HEAD_SIZE);
+            Thumbnails.Result thumb = readThumbnail(buf, readMetadata(buf));
+            // Only store it if it matches the persisted hash
+            if (thumb != null && unchanged && store != null) {
+                store.put(hash, fileSize, lastModified, thumb.encoded);
+            }
+            return thumb;
         } catch (IOException ex) {
-            hash = 0;
+            return null;
+        } finally {
+            buf.release();
+        }
+    }
+
+    // The embedded EXIF preview if there is one, which only needs the head
+    // of the file.  Otherwise the rest of the file is read and decoded.
+    private Thumbnails.Result readThumbnail(FileBuffer buf, @Nullable Metadata metadata) {
+        Thumbnails.Result thumb = Thumbnails.readEmbedded(buf.array(), buf.length(), metadata,
+                THUMB_WIDTH, THUMB_HEIGHT);
+        if (thumb != null) {
+            return thumb;
+        }
+        if (!buf.isComplete()) {
+            try {
+                buf.read(file);
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        return Thumbnails.read(buf.array(), buf.length(), metadata, THUMB_WIDTH, THUMB_HEIGHT);
+    }
+
+    // Hash the ends of the file, for a photo from a catalog that didn't
+    // have a partial hash.  Returns false if the file could not be read.
+    boolean computePartialHash() {
+        FileBuffer buf = FileBuffer.get();
+        try {
+            buf.readHead(file, FileBuffer.PARTIAL_BYTES);
+            partialHash = buf.partialHash();
+            return true;
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not hash " + file + ": " + ex.toString());
+            return false;
+        } finally {
+            buf.release();
+        }
+    }
+
+    // Hash the full contents of the file, for telling duplicates apart.
+    // Returns false if the file could not be read.
+    boolean computeContentHash() {
+        try {
+            contentHash = com.google.common.io.Files.asByteSource(file)
+                    .hash(Hashing.murmur3_128()).toString();
+            return true;
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not hash " + file + ": " + ex.toString());
+            return false;
+        }
+    }
+
+    // Called on the FX thread when this photo's duplicate group changed.
+    void duplicatesChanged() {
+        setChanged();
+        notifyObservers();
+    }
+
+    // Called on the FX thread by ThumbnailCache once the thumbnail is ready.
+    void thumbnailLoaded() {
+        setChanged();
+        notifyObservers();
+    }
+
+    // Returns the calling thread's buffer filled with the head of the file,
+    // or null if the file could not be read.
+    private FileBuffer readFile() {
+        if (!file.exists()) {
+            missing = true;
+            return null;
         }
 
         lastModified = file.lastModified();
         fileSize = file.length();
+        partialHash = null;
+        contentHash = null;
+
+        FileBuffer buf = FileBuffer.get();
+        try {
+            buf.readHead(file, FileBuffer.HEAD_SIZE);
+        } catch (IOException ex) {
+            buf.release();
+            invalid = true;
+            hash = 0;
+            return null;
+        }
+        return buf;
+    }
+
+    private void readTransient(FileBuffer buf, @Nullable Metadata metadata) {
+        // Read hash.  Only the ends of the file are hashed; the whole file
+        // is only hashed if it might be a duplicate.
+        partialHash = buf.partialHash();
+        hash = partialHash;
+
+        // Read image
+        Thumbnails.Result thumb = readThumbnail(buf, metadata);
+        if (thumb == null) {
+            invalid = true;
+            return;
+        }
+        perceptualHash = PerceptualHash.dHash(thumb.encoded);
+
+        if (db != null) {
+            if (db.getThumbnailStore() != null) {
+                db.getThumbnailStore().put(hash, fileSize, lastModified, thumb.encoded);
+            }
+            db.getThumbnailCache().put(this, thumb.image);
+        }
     }
 
     public Database getDb() { return db; }
     public File getFile() { return file; }
-    public Image getThumbnail() { return thumbnail; }
+
+    // The thumbnail, if it is in memory.
+    @JsonIgnore
+    public Image getThumbnail() {
+        return (db != null) ? db.getThumbnailCache().get(this) : null;
+    }
+
+    // The thumbnail, if it is in memory.  Otherwise, starts loading it and
+    // returns null; observers are notified when it is ready.
+    public Image requestThumbnail() {
+        return (db != null) ? db.getThumbnailCache().request(this) : null;
+    }
+
     public long getLastModified() { return lastModified; }
     public long getFileSize() { return fileSize; }
     public long getWidth() { return width; }
     public long getHeight() { return height; }
     public int getHash() { return hash; }
+    public String getContentHash() { return contentHash; }
     public LocalDateTime getOriginalDate() { return originalDate; }
     public boolean isMissing() { return missing; }
     public boolean isInvalid() { return invalid; }
@@ -101,7 +349,14 @@ public class Photo extends Observable {
         setChanged();
         notifyObservers();
         if (db != null) {
-            db.setChangedSinceSave();
+            db.recordEdit(this, j -> j.caption(this, val));
+        }
+    }
+
+    // Make this the canonical copy among its duplicates.
+    public void makeMainCopy() {
+        if (db != null) {
+            db.setCanonicalCopy(this);
         }
     }
 
@@ -111,7 +366,7 @@ public class Photo extends Observable {
         setChanged();
         notifyObservers();
         if (db != null) {
-            db.setChangedSinceSave();
+            db.recordEdit(this, j -> j.favorite(this, val));
         }
     }
 
@@ -121,100 +376,172 @@ public class Photo extends Observable {
         setChanged();
         notifyObservers();
         if (db != null) {
-            db.setChangedSinceSave();
+            db.recordEdit(this, j -> j.rotation(this, angle));
         }
     }
 
-    public List<String> getTags() { return tags; }
+    // The names of the tags, in order of their IDs.  A read-only view.
+    @JsonProperty("tags")
+    public List<String> getTags() {
+        final int[] ids = tagIds;
+        final TagDictionary dict = TagDictionary.get();
+        return new AbstractList<String>() {
+            @Override public String get(int i) { return dict.name(ids[i]); }
+            @Override public int size() { return ids.length; }
+        };
+    }
+    @JsonProperty("tags")
+    void setTags(List<String> tags) {
+        tagIds = NO_TAGS;
+        for(String tag : tags) {
+            addTagId(TagDictionary.get().intern(tag));
+        }
+    }
+    public boolean hasTag(String tag) {
+        int id = TagDictionary.get().lookup(tag);
+        return id >= 0 && Arrays.binarySearch(tagIds, id) >= 0;
+    }
     public void addTag(String tag) {
-        if (tags.contains(tag)) {
+        int id = TagDictionary.get().intern(tag);
+        if (!addTagId(id)) {
             return;
         }
-        db.incTag(tag, 1);
-        tags.add(tag);
+        db.tagChanged(this, id, true);
         setChanged();
         notifyObservers();
-        db.setChangedSinceSave();
+        db.recordEdit(this, j -> j.addTag(this, tag));
     }
     public void removeTag(String tag) {
-        if (!tags.contains(tag)) {
+        int id = TagDictionary.get().lookup(tag);
+        if (id < 0 || !removeTagId(id)) {
             return;
         }
-        db.incTag(tag, -1);
-        tags.remove(tag);
+        db.tagChanged(this, id, false);
         setChanged();
         notifyObservers();
-        db.setChangedSinceSave();
+        db.recordEdit(this, j -> j.removeTag(this, tag));
     }
     public void removeAllTags() {
-        for(String tag: tags) {
-            db.incTag(tag, -1);
+        int[] ids = tagIds;
+        tagIds = NO_TAGS;
+        for(int id : ids) {
+            db.tagChanged(this, id, false);
         }
-        tags.clear();
         setChanged();
         notifyObservers();
-        db.setChangedSinceSave();
+        db.recordEdit(this, j -> j.removeAllTags(this));
+    }
+
+    // Returns false if the photo already has the tag.
+    boolean addTagId(int id) {
+        int[] ids = tagIds;
+        int i = Arrays.binarySearch(ids, id);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        int[] result = new int[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, i);
+        result[i] = id;
+        System.arraycopy(ids, i, result, i + 1, ids.length - i);
+        tagIds = result;
+        return true;
     }
 
-    public void readMetadata() {
+    // Returns false if the photo doesn't have the tag.
+    boolean removeTagId(int id) {
+        int[] ids = tagIds;
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0) {
+            return false;
+        }
+        int[] result = (ids.length == 1) ? NO_TAGS : new int[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, i);
+        System.arraycopy(ids, i + 1, result, i, ids.length - i - 1);
+        tagIds = result;
+        return true;
+    }
+
+    private Metadata readMetadata(FileBuffer buf) {
+        if (!buf.isComplete()) {
+            // The metadata normally all comes before the image data, within
+            // the head of the file.  If not, read the rest of it.
+            try {
+                Metadata metadata = ImageMetadataReader.readMetadata(buf.openStream(), buf.length());
+                if (metadata.containsDirectoryOfType(JpegDirectory.class)) {
+                    return metadata;
+                }
+            } catch (Exception e) {
+                // Try again with the whole file
+            }
+            try {
+                buf.read(file);
+            } catch (IOException ex) {
+                System.out.println("WARNING: Could not read metadata: " + file);
+                return null;
+            }
+        }
         try {
-            Metadata metadata = ImageMetadataReader.readMetadata(file);
-
-            for (Directory directory : metadata.getDirectories()) {
-
-                //
-                // Each Directory stores values in Tag objects
-                //
-                for (Tag tag : directory.getTags()) {
-                    try {
-                        if (tag.getTagName().equals("Image Height")) {
-                            final Pattern pixels = Pattern.compile("(\\d+) pixels");
-                            Matcher m = pixels.matcher(tag.getDescription());
-                            if (m.matches()) {
-                                height = Integer.parseInt(m.group(1));
-                            }
+            return ImageMetadataReader.readMetadata(buf.openStream(), buf.length());
+        } catch (Exception e) {
+            System.out.println("WARNING: Could not read metadata: " + file);
+            return null;
+        }
+    }
+
+    private void parseMetadata(Metadata metadata) {
+        for (Directory directory : metadata.getDirectories()) {
+
+            //
+            // Each Directory stores values in Tag objects
+            //
+            for (Tag tag : directory.getTags()) {
+                try {
+                    if (tag.getTagName().equals("Image Height")) {
+                        final Pattern pixels = Pattern.compile("(\\d+) pixels");
+                        Matcher m = pixels.matcher(tag.getDescription());
+                        if (m.matches()) {
+                            height = Integer.parseInt(m.group(1));
                         }
-                        if (tag.getTagName().equals("Image Width")) {
-                            final Pattern pixels = Pattern.compile("(\\d+) pixels");
-                            Matcher m = pixels.matcher(tag.getDescription());
-                            if (m.matches()) {
-                                width = Integer.parseInt(m.group(1));
-                            }
+                    }
+                    if (tag.getTagName().equals("Image Width")) {
+                        final Pattern pixels = Pattern.compile("(\\d+) pixels");
+                        Matcher m = pixels.matcher(tag.getDescription());
+                        if (m.matches()) {
+                            width = Integer.parseInt(m.group(1));
                         }
-                        if (tag.getTagName().equals("Orientation")) {
-                            // Example: "Right side, top (Rotate 90 CW)"
-
-                            // Clockwise rotations
-                            final Pattern cwRotation = Pattern.compile(".*\\(Rotate (\\d+) CW\\).*");
-                            Matcher m = cwRotation.matcher(tag.getDescription());
-                            if (m.matches()) {
-                                rotation = Integer.parseInt(m.group(1));
-                            }
-
-                            // Counter-clockwise rotations
-                            final Pattern ccwRotation = Pattern.compile(".*\\(Rotate (\\d+) CCW\\).*");
-                            m = ccwRotation.matcher(tag.getDescription());
-                            if (m.matches()) {
-                                rotation = -Integer.parseInt(m.group(0));
-                            }
-
-                            // TODO: mirroring?
+                    }
+                    if (tag.getTagName().equals("Orientation")) {
+                        // Example: "Right side, top (Rotate 90 CW)"
+
+                        // Clockwise rotations
+                        final Pattern cwRotation = Pattern.compile(".*\\(Rotate (\\d+) CW\\).*");
+                        Matcher m = cwRotation.matcher(tag.getDescription());
+                        if (m.matches()) {
+                            rotation = Integer.parseInt(m.group(1));
                         }
-                        if (tag.getTagName().equals("Date/Time")) {
-                            // Example: "2016:10:03 16:00:04"
-                            originalDate = LocalDateTime.parse(tag.getDescription(), EXIF_DATE_FORMAT);
+
+                        // Counter-clockwise rotations
+                        final Pattern ccwRotation = Pattern.compile(".*\\(Rotate (\\d+) CCW\\).*");
+                        m = ccwRotation.matcher(tag.getDescription());
+                        if (m.matches()) {
+                            rotation = -Integer.parseInt(m.group(0));
                         }
-                        // Debugging/testing:
-                        // System.out.println(tag.toString());
+
+                        // TODO: mirroring?
                     }
-                    catch (Exception e) {
-                        System.out.println("WARNING: Exception " + e.toString() + " for tag: " + tag.toString());
+                    if (tag.getTagName().equals("Date/Time")) {
+                        // Example: "2016:10:03 16:00:04"
+                        originalDate = LocalDateTime.parse(tag.getDescription(), EXIF_DATE_FORMAT);
                     }
+                    // Debugging/testing:
+                    // System.out.println(tag.toString());
+                }
+                catch (Exception e) {
+                    System.out.println("WARNING: Exception " + e.toString() + " for tag: " + tag.toString());
                 }
-
             }
-        } catch (Exception e) {
-            System.out.println("WARNING: Could not read metadata: " + file);
+
         }
     }
 }
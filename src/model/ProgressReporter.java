@@ -0,0 +1,104 @@
+package model;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Progress of a long-running task over many files.
+//
+// Workers only bump atomic counters.  The message is formatted and handed
+// to the sink at a fixed rate (about 10 Hz) by a shared scheduler thread,
+// rather than once per file, which would flood the FX event queue.
+public class ProgressReporter {
+
+    static final long PERIOD_MS = 100;
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "progress-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final String label;
+    private final Consumer<String> sink;
+    private final long startTime = System.nanoTime();
+
+    private final AtomicLong numDone = new AtomicLong();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong total = new AtomicLong(-1);
+    private volatile Supplier<String> detail = null;
+
+    private ScheduledFuture<?> future;
+
+    // 'label' describes what is being counted, e.g. "Imported".
+    public ProgressReporter(String label, Consumer<String> sink) {
+        this.label = label;
+        this.sink = sink;
+    }
+
+    public ProgressReporter start() {
+        future = scheduler.scheduleAtFixedRate(this::publish, PERIOD_MS, PERIOD_MS, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    // Stop publishing, after one final update.
+    public void stop() {
+        if (future != null) {
+            future.cancel(false);
+        }
+        publish();
+    }
+
+    public void setTotal(long n) { total.set(n); }
+
+    // Extra text appended to each message
+    public void setDetail(Supplier<String> detail) { this.detail = detail; }
+
+    public void fileDone(long bytes) {
+        numDone.incrementAndGet();
+        numBytes.addAndGet(bytes);
+    }
+
+    // A file that was counted in the total but needed no work, e.g. one
+    // already in the catalog.  It is left out, rather than counted as done,
+    // so it doesn't inflate the rate.
+    public void fileSkipped() {
+        total.updateAndGet(n -> (n > 0) ? n - 1 : n);
+    }
+
+    public long getNumDone() { return numDone.get(); }
+
+    public String format() {
+        long done = numDone.get();
+        long bytes = numBytes.get();
+        long n = total.get();
+        double seconds = Math.max(0.001, (System.nanoTime() - startTime) / 1e9);
+        double rate = done / seconds;
+
+        StringBuilder sb = new StringBuilder(label).append(' ').append(done);
+        if (n >= 0) {
+            sb.append(" of ").append(n);
+        }
+        sb.append(String.format(" files (%.0f files/s", rate));
+        if (bytes > 0) {
+            sb.append(String.format(", %.1f MB/s", bytes / seconds / (1 << 20)));
+        }
+        if (n >= 0 && done < n && rate > 0) {
+            long eta = (long)((n - done) / rate);
+            sb.append(String.format(", ETA %d:%02d", eta / 60, eta % 60));
+        }
+        sb.append(')');
+
+        Supplier<String> d = detail;
+        if (d != null) {
+            sb.append(".  ").append(d.get());
+        }
+        return sb.toString();
+    }
+
+    private void publish() {
+        sink.accept(format());
+    }
+}
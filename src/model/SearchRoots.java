@@ -0,0 +1,50 @@
+package model;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.*;
+
+// The folders that have been added to the database, and what was seen in
+// each directory below them the last time they were scanned.
+//
+// A directory's modification time only changes when entries are added to
+// or removed from it.  If it is unchanged, its files and subdirectories are
+// known without listing it again, so rescans only need to stat directories.
+public class SearchRoots {
+
+    public static class DirState {
+        @JsonProperty long lastModified;
+        @JsonProperty List<String> subdirs = new ArrayList<String>();
+
+        // Deserialization only
+        public DirState() { }
+
+        DirState(long lastModified, List<String> subdirs) {
+            this.lastModified = lastModified;
+            this.subdirs = subdirs;
+        }
+    }
+
+    @JsonProperty List<File> roots = new ArrayList<File>();
+
+    // Keyed by directory path
+    @JsonProperty ConcurrentHashMap<String, DirState> dirs =
+            new ConcurrentHashMap<String, DirState>();
+
+    public List<File> getRoots() { return roots; }
+
+    boolean addRoot(File root) {
+        if (roots.contains(root)) {
+            return false;
+        }
+        roots.add(root);
+        return true;
+    }
+
+    void clear() {
+        roots.clear();
+        dirs.clear();
+    }
+}
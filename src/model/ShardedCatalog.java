@@ -0,0 +1,181 @@
+package model;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.*;
+import com.fasterxml.jackson.databind.*;
+
+// The catalog split into shards, each a catalog file of its own (JSON or
+// binary), in a directory with a manifest listing them.
+//
+// Photos are assigned to shards by their directory, so a folder's photos
+// are kept together and editing them only touches one shard.  Shards are
+// encoded and decoded in parallel on the fork-join pool, so load and save
+// scale with the number of cores, and only shards with changes need to be
+// written at all (see Database.saveSnapshot).
+//
+// Shard files are never overwritten: each save writes new files, named
+// after the manifest's generation, and then replaces the manifest.  Until
+// then the previous manifest and its files are untouched, so a crash while
+// saving leaves a consistent catalog.  Files no longer listed are deleted
+// afterwards.
+class ShardedCatalog {
+
+    static final int NUM_SHARDS = 32;
+    static final String MANIFEST = "manifest.json";
+    static final int VERSION = 1;
+
+    static class Manifest {
+        @JsonProperty int version = VERSION;
+        @JsonProperty long generation = 0;
+        @JsonProperty boolean binary = false;
+        // Indexed by shard number
+        @JsonProperty List<Shard> shards = new ArrayList<Shard>();
+    }
+
+    static class Shard {
+        @JsonProperty String file;
+        @JsonProperty int photos;
+
+        // Deserialization only
+        Shard() { }
+
+        Shard(String file, int photos) {
+            this.file = file;
+            this.photos = photos;
+        }
+    }
+
+    static int shardOf(Photo p) {
+        String dir = p.file.getParent();
+        return (dir != null) ? Math.floorMod(dir.hashCode(), NUM_SHARDS) : 0;
+    }
+
+    // Returns null if there is no manifest, or it can't be read.
+    @Nullable
+    static Manifest readManifest(File dir) {
+        File f = new File(dir, MANIFEST);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            Manifest m = new ObjectMapper()
+                    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                    .readValue(f, Manifest.class);
+            if (m.version != VERSION) {
+                System.out.println("WARNING: Unsupported catalog manifest version " + m.version);
+                return null;
+            }
+            return m;
+        } catch (IOException ex) {
+            System.out.println("WARNING: Could not read catalog manifest: " + ex.toString());
+            return null;
+        }
+    }
+
+    // True if only the shards that changed need to be written on top of
+    // the catalog in 'm'.
+    static boolean canUpdate(@Nullable Manifest m, boolean binary) {
+        return m != null && m.binary == binary && m.shards.size() == NUM_SHARDS;
+    }
+
+    // Write the given shards, and keep the rest from 'previous'.  Unless
+    // canUpdate(previous), every shard must be given.
+    static void write(File dir, @Nullable Manifest previous,
+            Map<Integer, List<Photo>> shards, boolean binary, int compression) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        Manifest m = new Manifest();
+        m.binary = binary;
+        m.generation = (previous != null) ? previous.generation + 1 : 1;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int i = 0; i < NUM_SHARDS; i++) {
+            List<Photo> photos = shards.get(i);
+            if (photos == null) {
+                m.shards.add(previous.shards.get(i));
+                continue;
+            }
+
+            String name = String.format("shard-%02d-%d.%s", i, m.generation, binary ? "bin" : "json");
+            m.shards.add(new Shard(name, photos.size()));
+            File f = new File(dir, name);
+            tasks.add(() -> {
+                Database.replaceFile(f, os -> Database.writeCatalog(os, photos, binary, compression));
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
+        Database.replaceFile(new File(dir, MANIFEST), os -> os.write(mapper.writeValueAsBytes(m)));
+
+        // Clean up the files of earlier generations
+        Set<String> live = new HashSet<String>();
+        for(Shard s : m.shards) {
+            live.add(s.file);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for(File f : files) {
+                if (f.getName().startsWith("shard-") && !live.contains(f.getName())) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    // Read all shards in parallel.  Each shard's photos are passed to
+    // 'consumer' when it has been read, from whichever thread read it.
+    static void read(File dir, Consumer<List<Photo>> consumer) throws IOException {
+        Manifest m = readManifest(dir);
+        if (m == null) {
+            throw new IOException("No catalog manifest in " + dir);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(Shard s : m.shards) {
+            File f = new File(dir, s.file);
+            tasks.add(() -> {
+                List<Photo> photos = new ArrayList<Photo>(s.photos);
+                try (InputStream is = new FileInputStream(f)) {
+                    Database.readCatalog(is, photos::add);
+                }
+                consumer.accept(photos);
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    // --- internal ---
+
+    private static void runAll(List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+        for(Future<Void> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps each tag to a small int ID, so that a photo's tags are an int[]
+// (see Photo.tagIds) rather than a list of strings.  Each tag's string is
+// then held once, however many photos have it.
+//
+// IDs are dense and assigned in order of first use; they are never
+// reused.  There is one dictionary, since photos are deserialized before
+// they belong to a database.  IDs are not persisted; catalogs store the
+// tags' names.
+//
+// Thread-safe.  Looking up a name doesn't lock.
+class TagDictionary {
+
+    private static final TagDictionary instance = new TagDictionary();
+
+    static TagDictionary get() { return instance; }
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    // Indexed by ID; replaced when it grows
+    private volatile String[] names = new String[64];
+    private int size = 0;
+
+    // The ID of a tag, assigning one if it is new.
+    int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) {
+            return id;
+        }
+        synchronized(this) {
+            id = ids.get(tag);
+            if (id != null) {
+                return id;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            names[size] = tag;
+            ids.put(tag, size);
+            return size++;
+        }
+    }
+
+    // The ID of a tag, or -1 if no photo has ever had it.
+    int lookup(String tag) {
+        Integer id = ids.get(tag);
+        return (id != null) ? id : -1;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+}
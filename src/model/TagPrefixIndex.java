@@ -0,0 +1,86 @@
+package model;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+// The tags in use, sorted case-insensitively, so that the tags starting
+// with a prefix are a contiguous range found by binary search.  Used to
+// complete tags as they are typed, and to filter the tag chooser.
+//
+// Immutable, so it can be read without the database lock; the database
+// builds a new one when a tag is first used or no photo has it any more
+// (see Database.getTagPrefixIndex).
+class TagPrefixIndex {
+
+    // Lower-cased names, sorted, and the name for each
+    private final String[] keys;
+    private final String[] names;
+
+    TagPrefixIndex(Collection<String> tags) {
+        // Sort pairs of key and name, so each key is made once
+        String[][] pairs = new String[tags.size()][];
+        int n = 0;
+        for(String tag : tags) {
+            pairs[n++] = new String[] { key(tag), tag };
+        }
+        Arrays.sort(pairs, (a, b) -> {
+            int c = a[0].compareTo(b[0]);
+            return (c != 0) ? c : a[1].compareTo(b[1]);
+        });
+        keys = new String[n];
+        names = new String[n];
+        for(int i = 0; i < n; i++) {
+            keys[i] = pairs[i][0];
+            names[i] = pairs[i][1];
+        }
+    }
+
+    // The tags starting with 'prefix', ignoring case, in order.  A view
+    // of the index, so it costs the same however many tags match.
+    List<String> withPrefix(String prefix) {
+        int from = lowerBound(key(prefix));
+        int to = lowerBound(key(prefix) + Character.MAX_VALUE);
+        return Collections.unmodifiableList(Arrays.asList(names).subList(from, to));
+    }
+
+    // Up to 'num' of the tags starting with 'prefix', those with the
+    // highest counts first.
+    List<String> complete(String prefix, int num, ToIntFunction<String> count) {
+        // The best so far, worst at the head
+        PriorityQueue<String> best = new PriorityQueue<String>(num + 1,
+                Comparator.comparingInt(count)
+                        .thenComparing(Comparator.reverseOrder()));
+        for(String tag : withPrefix(prefix)) {
+            best.add(tag);
+            if (best.size() > num) {
+                best.poll();
+            }
+        }
+        List<String> rsl = new ArrayList<String>(best.size());
+        while (!best.isEmpty()) {
+            rsl.add(best.poll());
+        }
+        Collections.reverse(rsl);
+        return rsl;
+    }
+
+    // --- internal ---
+
+    private static String key(String tag) {
+        return tag.toLowerCase(Locale.ROOT);
+    }
+
+    // The first index whose key is not less than 'key'
+    private int lowerBound(String key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,248 @@
+package model;
+
+import java.util.*;
+
+// A boolean query over tags and flags, such as
+//
+//     family AND (beach OR lake) AND NOT blurry
+//
+// Terms are tag names, quoted if they contain spaces or parentheses, and
+// the flags is:favorite, is:missing, is:duplicate and is:tagged.  AND, OR
+// and NOT are case-insensitive; NOT binds tightest, then AND, then OR.
+// Terms next to each other are ANDed.
+//
+// A query is parsed once, and evaluated against the tag index (see
+// Database.tagIndex) with bitmap intersection, union and difference, so it
+// doesn't look at photos that can't match.
+public class TagQuery {
+
+    public static class SyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    private final Node root;
+    private final String text;
+
+    private TagQuery(Node root, String text) {
+        this.root = root;
+        this.text = text;
+    }
+
+    public static TagQuery parse(String text) throws SyntaxException {
+        Parser parser = new Parser(text);
+        Node root = parser.parseOr();
+        if (parser.peek() != null) {
+            throw new SyntaxException("Unexpected '" + parser.peek() + "'");
+        }
+        return new TagQuery(root, text);
+    }
+
+    @Override
+    public String toString() { return text; }
+
+    // The ordinals of the matching photos.  Call with the database lock
+    // held.
+    CompressedBitmap evaluate(Database db) {
+        return root.evaluate(db);
+    }
+
+    // --- internal ---
+
+    private static abstract class Node {
+        abstract CompressedBitmap evaluate(Database db);
+    }
+
+    private static class Tag extends Node {
+        final String name;
+
+        Tag(String name) { this.name = name; }
+
+        @Override CompressedBitmap evaluate(Database db) {
+            // The results are never modified, so this can be the index's own
+            CompressedBitmap photos = db.getTagIndex(name);
+            return (photos != null) ? photos : new CompressedBitmap();
+        }
+    }
+
+    private static class Flag extends Node {
+        final String name;
+
+        Flag(String name) { this.name = name; }
+
+        @Override CompressedBitmap evaluate(Database db) {
+            CompressedBitmap result = new CompressedBitmap();
+            for(int i = 0; i < db.ordinals.size(); i++) {
+                Photo p = db.ordinals.get(i);
+                if (p != null && matches(p)) {
+                    result.add(i);
+                }
+            }
+            return result;
+        }
+
+        private boolean matches(Photo p) {
+            switch (name) {
+            case "favorite":  return p.favorite;
+            case "missing":   return p.missing;
+            case "duplicate": return p.group != null && p.group.copies.size() > 1;
+            case "tagged":    return p.tagIds.length > 0;
+            default:          return false;
+            }
+        }
+    }
+
+    private static class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) { this.operand = operand; }
+
+        @Override CompressedBitmap evaluate(Database db) {
+            return CompressedBitmap.andNot(db.allPhotos, operand.evaluate(db));
+        }
+    }
+
+    private static class And extends Node {
+        final Node left, right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override CompressedBitmap evaluate(Database db) {
+            // "a AND NOT b" is a difference, without complementing b
+            if (right instanceof Not) {
+                return CompressedBitmap.andNot(left.evaluate(db), ((Not)right).operand.evaluate(db));
+            }
+            if (left instanceof Not) {
+                return CompressedBitmap.andNot(right.evaluate(db), ((Not)left).operand.evaluate(db));
+            }
+            return CompressedBitmap.and(left.evaluate(db), right.evaluate(db));
+        }
+    }
+
+    private static class Or extends Node {
+        final Node left, right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override CompressedBitmap evaluate(Database db) {
+            return CompressedBitmap.or(left.evaluate(db), right.evaluate(db));
+        }
+    }
+
+    private static final Set<String> FLAGS =
+            new HashSet<String>(Arrays.asList("favorite", "missing", "duplicate", "tagged"));
+
+    // Recursive descent, one method per level of precedence.
+    private static class Parser {
+        private final List<String> tokens = new ArrayList<String>();
+        // Tokens that were quoted, so are tags even if they look like
+        // operators
+        private final Set<Integer> quoted = new HashSet<Integer>();
+        private int pos = 0;
+
+        Parser(String text) throws SyntaxException {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    if (end < 0) {
+                        throw new SyntaxException("Missing closing quote");
+                    }
+                    quoted.add(tokens.size());
+                    tokens.add(text.substring(i + 1, end));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && "()\"".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(text.substring(start, i));
+                }
+            }
+        }
+
+        String peek() {
+            return (pos < tokens.size()) ? tokens.get(pos) : null;
+        }
+
+        // True if the next token is the given operator, not a quoted tag
+        boolean isOperator(String op) {
+            return pos < tokens.size() && !quoted.contains(pos) && tokens.get(pos).equalsIgnoreCase(op);
+        }
+
+        Node parseOr() throws SyntaxException {
+            Node node = parseAnd();
+            while (isOperator("OR")) {
+                pos++;
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        Node parseAnd() throws SyntaxException {
+            Node node = parseNot();
+            while (true) {
+                if (isOperator("AND")) {
+                    pos++;
+                } else if (peek() == null || isOperator("OR") || isOperator(")")) {
+                    return node;
+                }
+                node = new And(node, parseNot());
+            }
+        }
+
+        Node parseNot() throws SyntaxException {
+            if (isOperator("NOT")) {
+                pos++;
+                return new Not(parseNot());
+            }
+            return parseTerm();
+        }
+
+        Node parseTerm() throws SyntaxException {
+            String token = peek();
+            if (token == null) {
+                throw new SyntaxException("Unexpected end of query");
+            }
+            if (isOperator("(")) {
+                pos++;
+                Node node = parseOr();
+                if (!isOperator(")")) {
+                    throw new SyntaxException("Missing ')'");
+                }
+                pos++;
+                return node;
+            }
+            if (isOperator(")") || isOperator("AND") || isOperator("OR")) {
+                throw new SyntaxException("Unexpected '" + token + "'");
+            }
+
+            boolean wasQuoted = quoted.contains(pos);
+            pos++;
+            if (!wasQuoted && token.toLowerCase().startsWith("is:")) {
+                String flag = token.substring(3).toLowerCase();
+                if (!FLAGS.contains(flag)) {
+                    throw new SyntaxException("Unknown flag '" + token + "'");
+                }
+                return new Flag(flag);
+            }
+            return new Tag(token);
+        }
+    }
+}
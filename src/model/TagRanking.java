@@ -0,0 +1,115 @@
+package model;
+
+import java.util.*;
+
+// Ranks tags by how many photos have them, and by when they were last
+// added to a photo, for suggesting tags (see TagPopupController).
+//
+// Each ranking is a TreeSet kept in order as tags change, so an update is
+// O(log n) in the number of tags, and the top k are the first k entries
+// however large the vocabulary grows.  Tags no photo has are dropped.
+//
+// Recency isn't saved; it counts tags added since the catalog was loaded,
+// including those replayed from the journal.
+//
+// Not thread-safe; guarded by the database lock.
+class TagRanking {
+
+    private static class Entry {
+        final String tag;
+        int count = 0;
+        // When the tag was last added, from 'clock'; 0 if not since loading
+        long lastUsed = 0;
+
+        Entry(String tag) { this.tag = tag; }
+    }
+
+    // Most photos first, then alphabetically
+    private static final Comparator<Entry> BY_COUNT = (a, b) -> {
+        int c = Integer.compare(b.count, a.count);
+        return (c != 0) ? c : a.tag.compareTo(b.tag);
+    };
+
+    // Most recently added first.  No two entries have the same time.
+    private static final Comparator<Entry> BY_RECENCY =
+            (a, b) -> Long.compare(b.lastUsed, a.lastUsed);
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final TreeSet<Entry> byCount = new TreeSet<Entry>(BY_COUNT);
+    private final TreeSet<Entry> byRecency = new TreeSet<Entry>(BY_RECENCY);
+    private long clock = 0;
+
+    // A tag was added to or removed from 'delta' photos.  Returns true if
+    // it is a new tag, or one no photo has any more.
+    boolean count(String tag, int delta) {
+        Entry e = entries.get(tag);
+        if (e == null) {
+            if (delta <= 0) {
+                return false;
+            }
+            e = new Entry(tag);
+            entries.put(tag, e);
+        } else {
+            // An entry's position depends on its fields, so take it out
+            // while they change
+            byCount.remove(e);
+        }
+
+        boolean wasUsed = e.count > 0;
+        e.count += delta;
+        if (e.count > 0) {
+            byCount.add(e);
+        } else {
+            entries.remove(tag);
+            byRecency.remove(e);
+        }
+        return wasUsed != (e.count > 0);
+    }
+
+    // A tag was just added to a photo, after counting it.
+    void used(String tag) {
+        Entry e = entries.get(tag);
+        if (e == null) {
+            return;
+        }
+        byRecency.remove(e);
+        e.lastUsed = ++clock;
+        byRecency.add(e);
+    }
+
+    // The number of photos with a tag
+    int countOf(String tag) {
+        Entry e = entries.get(tag);
+        return (e != null) ? e.count : 0;
+    }
+
+    // The tags some photo has
+    Set<String> tags() {
+        return entries.keySet();
+    }
+
+    List<String> mostUsed(int num) {
+        return first(byCount, num);
+    }
+
+    List<String> mostRecent(int num) {
+        return first(byRecency, num);
+    }
+
+    void clear() {
+        entries.clear();
+        byCount.clear();
+        byRecency.clear();
+    }
+
+    private static List<String> first(TreeSet<Entry> ranking, int num) {
+        List<String> rsl = new ArrayList<String>(num);
+        for(Entry e : ranking) {
+            if (rsl.size() >= num) {
+                break;
+            }
+            rsl.add(e.tag);
+        }
+        return rsl;
+    }
+}
@@ -0,0 +1,127 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+// In-memory thumbnails, bounded by a byte budget.
+//
+// Thumbnails are only loaded when a view asks for one, on a small pool of
+// background threads, and the least recently used ones are dropped once the
+// budget is exceeded.  Heap use therefore depends on what is being looked
+// at, not on the size of the library.
+//
+// The budget defaults to DEFAULT_BUDGET_MB and can be set with the
+// "megatag.thumbnailCacheMB" system property.
+public class ThumbnailCache {
+
+    static final long DEFAULT_BUDGET_MB = 64;
+    static final int NUM_LOADERS = 2;
+
+    private final long budget;
+    private long used = 0;
+
+    // Access-ordered, so iteration starts at the least recently used
+    private final LinkedHashMap<Photo, Image> images =
+            new LinkedHashMap<Photo, Image>(256, 0.75f, true);
+
+    private final Set<Photo> pending = new HashSet<Photo>();
+
+    private final ExecutorService loaders;
+
+    public ThumbnailCache() {
+        this(Long.getLong("megatag.thumbnailCacheMB", DEFAULT_BUDGET_MB) << 20);
+    }
+
+    public ThumbnailCache(long budgetBytes) {
+        budget = budgetBytes;
+
+        // Most recent requests first: when scrolling quickly, the rows that
+        // are visible now matter more than the ones that scrolled past.
+        loaders = new ThreadPoolExecutor(
+                NUM_LOADERS, NUM_LOADERS,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override public boolean offer(Runnable r) {
+                        return offerFirst(r);
+                    }
+                },
+                r -> {
+                    Thread t = new Thread(r, "thumbnail-loader");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    // The thumbnail, if it is in memory.
+    public synchronized Image get(Photo p) {
+        return images.get(p);
+    }
+
+    // Returns the thumbnail if it is in memory.  Otherwise, starts loading it
+    // in the background and returns null; the photo's observers are notified
+    // on the FX thread once it is available.
+    public Image request(Photo p) {
+        synchronized(this) {
+            Image img = images.get(p);
+            if (img != null || !pending.add(p)) {
+                return img;
+            }
+        }
+
+        loaders.execute(() -> {
+            Image img = null;
+            try {
+                img = p.loadThumbnail();
+            } finally {
+                synchronized(this) {
+                    pending.remove(p);
+                }
+            }
+            if (img != null) {
+                put(p, img);
+                Platform.runLater(p::thumbnailLoaded);
+            }
+        });
+        return null;
+    }
+
+    public synchronized void put(Photo p, Image img) {
+        Image old = images.put(p, img);
+        if (old != null) {
+            used -= sizeOf(old);
+        }
+        used += sizeOf(img);
+
+        // Evict least recently used, but always keep the newest one
+        Iterator<Map.Entry<Photo, Image>> it = images.entrySet().iterator();
+        while (used > budget && images.size() > 1 && it.hasNext()) {
+            Map.Entry<Photo, Image> e = it.next();
+            if (e.getKey() == p) {
+                continue;
+            }
+            used -= sizeOf(e.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized void remove(Photo p) {
+        Image old = images.remove(p);
+        if (old != null) {
+            used -= sizeOf(old);
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        used = 0;
+    }
+
+    private static long sizeOf(Image img) {
+        // 32-bit pixels
+        return 4L * (long)img.getWidth() * (long)img.getHeight();
+    }
+}
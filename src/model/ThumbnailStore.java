@@ -0,0 +1,297 @@
+package model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// A persistent store of encoded thumbnails, packed into a single file.
+//
+// Startup would otherwise have to decode every photo again just to rebuild
+// the thumbnails.  Entries are keyed by content hash, file size and the
+// modification time of the file they were made from, so a stored thumbnail
+// is only used while the file is unchanged, and copies of a photo with
+// different times each have their own.
+//
+// File layout:
+//   header:  int MAGIC, int VERSION
+//   records: int hash, long fileSize, long lastModified, int length,
+//            byte[length] (JPEG data)
+//
+// Records are appended; a newer record for the same key replaces an older
+// one.  Records that are replaced, or whose file changed or is gone, are
+// dead space, and once there is enough of it the live records are copied
+// to a new file that replaces this one (see compact).  The file is
+// memory-mapped when opened, and a partial record left behind by a crash
+// is truncated away.
+public class ThumbnailStore implements Closeable {
+
+    static final int MAGIC = 0x4D545448; // "MTTH"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 24;
+
+    // Compact once dead records take up this much, and a third of the
+    // file
+    static final long COMPACT_MIN_BYTES = 16 << 20;
+
+    private static class Key {
+        final int hash;
+        final long fileSize;
+        final long lastModified;
+
+        Key(int hash, long fileSize, long lastModified) {
+            this.hash = hash;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return hash == k.hash && fileSize == k.fileSize && lastModified == k.lastModified;
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(hash, fileSize, lastModified);
+        }
+    }
+
+    private static class Entry {
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    // Replaced when the store is compacted; all guarded by 'index'
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private final Map<Key, Entry> index = new HashMap<Key, Entry>();
+    private long end;
+    // Bytes of records in the index, headers included
+    private long liveBytes;
+
+    public ThumbnailStore(File f) throws IOException {
+        file = f;
+        open();
+    }
+
+    public int size() {
+        synchronized(index) {
+            return index.size();
+        }
+    }
+
+    // Returns the stored thumbnail, or null if there is none for a file
+    // with this exact hash, size and modification time.
+    public byte[] get(int hash, long fileSize, long lastModified) {
+        synchronized(index) {
+            Entry e = index.get(new Key(hash, fileSize, lastModified));
+            if (e == null) {
+                return null;
+            }
+            byte[] data = new byte[e.length];
+            try {
+                read(e.offset, data);
+            } catch (IOException ex) {
+                return null;
+            }
+            return data;
+        }
+    }
+
+    public void put(int hash, long fileSize, long lastModified, byte[] data) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        record.putInt(hash)
+              .putLong(fileSize)
+              .putLong(lastModified)
+              .putInt(data.length)
+              .put(data)
+              .flip();
+
+        synchronized(index) {
+            try {
+                long pos = end;
+                while (record.hasRemaining()) {
+                    pos += channel.write(record, pos);
+                }
+                add(new Key(hash, fileSize, lastModified), new Entry(end + RECORD_HEADER_SIZE, data.length));
+                end = pos;
+            } catch (IOException ex) {
+                // Not fatal; the thumbnail will just be rebuilt next time.
+                System.out.println("WARNING: Could not store thumbnail: " + ex.toString());
+            }
+        }
+    }
+
+    // Drop the thumbnails of files that changed or are gone, given the
+    // photos in the catalog with their current facts.  If that leaves
+    // enough dead space, the live records are copied to a new file that
+    // replaces this one, so a crash leaves one or the other.
+    void compact(Collection<Photo> photos) {
+        Set<Key> current = new HashSet<Key>();
+        for(Photo p : photos) {
+            current.add(new Key(p.hash, p.fileSize, p.lastModified));
+        }
+
+        synchronized(index) {
+            Iterator<Map.Entry<Key, Entry>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> e = it.next();
+                if (!current.contains(e.getKey())) {
+                    liveBytes -= RECORD_HEADER_SIZE + e.getValue().length;
+                    it.remove();
+                }
+            }
+
+            long dead = end - HEADER_SIZE - liveBytes;
+            if (dead < COMPACT_MIN_BYTES || dead < liveBytes / 2) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                Database.replaceFile(file, os -> {
+                    DataOutputStream out = new DataOutputStream(os);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    for(Map.Entry<Key, Entry> e : index.entrySet()) {
+                        Key k = e.getKey();
+                        byte[] data = new byte[e.getValue().length];
+                        read(e.getValue().offset, data);
+                        out.writeInt(k.hash);
+                        out.writeLong(k.fileSize);
+                        out.writeLong(k.lastModified);
+                        out.writeInt(data.length);
+                        out.write(data);
+                    }
+                    out.flush();
+                });
+            } catch (IOException ex) {
+                // The old file is still in place
+                System.out.println("WARNING: Could not compact thumbnail store: " + ex.toString());
+                return;
+            }
+
+            try {
+                channel.close();
+                mapped = null;
+                index.clear();
+                open();
+            } catch (IOException ex) {
+                System.out.println("WARNING: Could not reopen thumbnail store: " + ex.toString());
+                index.clear();
+                return;
+            }
+            System.out.println("Compacted thumbnail store from " + (dead + liveBytes + HEADER_SIZE) +
+                    " to " + end + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized(index) {
+            channel.close();
+        }
+    }
+
+    // --- internal ---
+
+    // Open the file, and index its records.  Call with 'index' held, or
+    // from the constructor.
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+
+        if (!hasValidHeader()) {
+            // New or unrecognized file: start over.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        }
+
+        // Drop a partial record before mapping, since some systems can't
+        // truncate a file that is mapped
+        liveBytes = 0;
+        end = scan();
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+
+        // Very large stores are only mapped up to 2GB; the remainder, and
+        // anything appended later, is read through the channel.
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), Integer.MAX_VALUE));
+    }
+
+    private void add(Key key, Entry e) {
+        Entry old = index.put(key, e);
+        if (old != null) {
+            liveBytes -= RECORD_HEADER_SIZE + old.length;
+        }
+        liveBytes += RECORD_HEADER_SIZE + e.length;
+    }
+
+    private boolean hasValidHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    // Build the index.  Returns the end of the last complete record.
+    private long scan() throws IOException {
+        long size = channel.size();
+        long pos = HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        while (pos + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            read(pos, header.array());
+
+            int hash = header.getInt();
+            long fileSize = header.getLong();
+            long lastModified = header.getLong();
+            int length = header.getInt();
+
+            long next = pos + RECORD_HEADER_SIZE + length;
+            if (length < 0 || next > size) {
+                break;
+            }
+            add(new Key(hash, fileSize, lastModified), new Entry(pos + RECORD_HEADER_SIZE, length));
+            pos = next;
+        }
+        return pos;
+    }
+
+    private void read(long offset, byte[] dst) throws IOException {
+        if (mapped != null && offset + dst.length <= mapped.limit()) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int)offset);
+            view.get(dst);
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(dst);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, offset + bb.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package model;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.annotation.Nullable;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifThumbnailDirectory;
+
+// Fast thumbnail extraction.
+//
+// Most camera JPEGs carry a small (typically 160x120) preview in the EXIF
+// APP1 segment.  Decoding that is far cheaper than decoding a 24MP image, so
+// it is used whenever present.  Otherwise, the full image is decoded with
+// subsampling so that only a fraction of the pixels are ever materialized.
+//
+// The embedded preview has the same orientation as the main image, so the
+// photo's rotation applies to either one unchanged.
+class Thumbnails {
+
+    // A thumbnail, both decoded and encoded (JPEG) for storage.
+    static class Result {
+        final Image image;
+        final byte[] encoded;
+
+        Result(Image image, byte[] encoded) {
+            this.image = image;
+            this.encoded = encoded;
+        }
+    }
+
+    // Create a thumbnail that fits within width x height.
+    // Returns null if the data could not be decoded at all.
+    static Result read(byte[] data, int length, @Nullable Metadata metadata,
+            int width, int height) {
+        Result embedded = readEmbedded(data, length, metadata, width, height);
+        if (embedded != null) {
+            return embedded;
+        }
+
+        BufferedImage img = decodeSubsampled(data, length, width, height);
+        if (img == null) {
+            // Last resort, e.g. for CMYK images that ImageIO can't read.
+            Image fx = new Image(new ByteArrayInputStream(data, 0, length), width, height, true, true);
+            if (fx.isError()) {
+                return null;
+            }
+            img = scaleToFit(SwingFXUtils.fromFXImage(fx, null), width, height);
+        }
+
+        byte[] encoded = encode(img);
+        return new Result(SwingFXUtils.toFXImage(img, null), encoded);
+    }
+
+    // The embedded EXIF preview as a thumbnail, or null if there is none
+    // within the first 'length' bytes.  Only needs the start of the file.
+    static Result readEmbedded(byte[] data, int length, @Nullable Metadata metadata,
+            int width, int height) {
+        int[] embedded = findEmbedded(data, length, metadata);
+        if (embedded == null) {
+            return null;
+        }
+        byte[] encoded = Arrays.copyOfRange(data, embedded[0], embedded[0] + embedded[1]);
+        Image img = decode(encoded, width, height);
+        return (img != null) ? new Result(img, encoded) : null;
+    }
+
+    // Decode a thumbnail previously produced by read().
+    // Returns null if the data is not a valid image.
+    static Image decode(byte[] encoded, int width, int height) {
+        Image img = new Image(new ByteArrayInputStream(encoded), width, height, true, true);
+        return img.isError() ? null : img;
+    }
+
+    // Returns {offset, length} of the embedded JPEG preview within 'data',
+    // or null if there is none.
+    static int[] findEmbedded(byte[] data, int length, @Nullable Metadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        ExifThumbnailDirectory dir = metadata.getFirstDirectoryOfType(ExifThumbnailDirectory.class);
+        if (dir == null) {
+            return null;
+        }
+        Integer offset = dir.getInteger(ExifThumbnailDirectory.TAG_THUMBNAIL_OFFSET);
+        Integer size = dir.getInteger(ExifThumbnailDirectory.TAG_THUMBNAIL_LENGTH);
+        if (offset == null || size == null || size < 2) {
+            return null;
+        }
+
+        // The offset is relative to the TIFF header inside the APP1 segment.
+        // Some metadata-extractor versions have already made it absolute, so
+        // accept either as long as a JPEG SOI marker is found there.
+        int tiffStart = findTiffHeader(data, length);
+        for (int base : new int[] { Math.max(tiffStart, 0), 0 }) {
+            long start = (long)base + offset;
+            if (start >= 0 && start + size <= length && isJpegStart(data, (int)start)) {
+                return new int[] { (int)start, size };
+            }
+        }
+        return null;
+    }
+
+    // Offset of the TIFF header within the Exif APP1 segment, or -1.
+    static int findTiffHeader(byte[] data, int length) {
+        if (length < 4 || !isJpegStart(data, 0)) {
+            return -1;
+        }
+
+        int pos = 2;
+        while (pos + 4 <= length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                return -1;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos += 1;
+                continue;
+            }
+            if (marker == 0x01 || marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Start of scan, or end of image: no more metadata
+                return -1;
+            }
+
+            int segmentLength = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            if (marker == 0xE1 && segmentLength >= 8 && pos + 10 <= length
+                    && data[pos + 4] == 'E' && data[pos + 5] == 'x'
+                    && data[pos + 6] == 'i' && data[pos + 7] == 'f'
+                    && data[pos + 8] == 0 && data[pos + 9] == 0) {
+                return pos + 10;
+            }
+            pos += 2 + segmentLength;
+        }
+        return -1;
+    }
+
+    // Decode with subsampling, then scale down to fit width x height.
+    // Returns null if ImageIO can't read the data.
+    static BufferedImage decodeSubsampled(byte[] data, int length, int width, int height) {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(data, 0, length))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+
+                int step = Math.max(1, Math.min(
+                        reader.getWidth(0) / width,
+                        reader.getHeight(0) / height));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+
+                BufferedImage img = reader.read(0, param);
+                return scaleToFit(img, width, height);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    // Always returns an RGB image, which is what the JPEG encoder needs.
+    private static BufferedImage scaleToFit(BufferedImage img, int width, int height) {
+        double scale = Math.min(1.0, Math.min(
+                (double)width / img.getWidth(),
+                (double)height / img.getHeight()));
+
+        int w = Math.max(1, (int)Math.round(img.getWidth() * scale));
+        int h = Math.max(1, (int)Math.round(img.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage img) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(img, "jpg", os);
+        } catch (IOException ex) {
+            // Can't happen for an in-memory stream
+        }
+        return os.toByteArray();
+    }
+
+    private static boolean isJpegStart(byte[] data, int pos) {
+        return (data[pos] & 0xFF) == 0xFF && (data[pos + 1] & 0xFF) == 0xD8;
+    }
+}
@@ -1,8 +1,10 @@
 package tablewindow;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -13,6 +15,7 @@ import javafx.scene.control.ListView;
 import javafx.util.Callback;
 import model.Database;
 import model.Photo;
+import model.TagQuery;
 
 public class DatabaseView implements Observer {
 
@@ -27,7 +30,11 @@ public class DatabaseView implements Observer {
     public boolean filterOnlyDuplicated = false;
     public boolean filterOnlyExtraCopies = false;
     public boolean filterHideExtraCopies = false;
+    public boolean filterNearDuplicates = false;
+    // From Database.findNearDuplicates; not updated as the database changes
+    public Map<Photo, Integer> nearDuplicateGroups = null;
     public String filterTag = null;
+    public TagQuery filterQuery = null;
 
     private Comparator<Photo> sort = null;
     private boolean ascendingSort = true;
@@ -65,7 +72,7 @@ public class DatabaseView implements Observer {
         if (filterUntagged && !p.getTags().isEmpty()) {
             return true;
         }
-        if (filterTag != null && !p.getTags().contains(filterTag)) {
+        if (filterTag != null && !p.hasTag(filterTag)) {
             return true;
         }
         if (filterOnlyDuplicated && (p.getDb().numDuplicates(p) <= 1)) {
@@ -80,6 +87,10 @@ public class DatabaseView implements Observer {
         if (filterHideExtraCopies && !p.getDb().isCanonicalCopy(p)) {
             return true;
         }
+        if (filterNearDuplicates &&
+                (nearDuplicateGroups == null || !nearDuplicateGroups.containsKey(p))) {
+            return true;
+        }
         return false;
     }
 
@@ -106,7 +117,17 @@ public class DatabaseView implements Observer {
     public void update() {
         ArrayList<Photo> toAdd = new ArrayList<Photo>();
 
-        for(Photo i : db.get()) {
+        // Only photos that match the query or have the tag need to be
+        // checked, and the index has them
+        Collection<Photo> candidates;
+        if (filterQuery != null) {
+            candidates = db.query(filterQuery);
+        } else if (filterTag != null) {
+            candidates = db.getTagged(filterTag);
+        } else {
+            candidates = db.get();
+        }
+        for(Photo i : candidates) {
             if (!isFiltered(i)) {
                 toAdd.add(i);
             }
@@ -16,6 +16,7 @@ import javafx.scene.control.TextArea;
 import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
@@ -55,6 +56,9 @@ public class ItemView extends ListCell<Photo> implements Observer {
             new Image(application.Main.class.getResourceAsStream("/media/write.png"),
                       25, 25, true, true);
 
+    // Shown until the thumbnail has been loaded
+    static final Image placeholderImage = createPlaceholderImage();
+
     static final int MAX_DISPLAY_LENGTH = 50;
 
     static final DateTimeFormatter DISPLAY_DATE_FORMAT =
@@ -196,6 +200,12 @@ public class ItemView extends ListCell<Photo> implements Observer {
 
     Photo getPhoto() { return model; }
 
+    private static Image createPlaceholderImage() {
+        WritableImage img = new WritableImage(1, 1);
+        img.getPixelWriter().setColor(0, 0, Color.gray(0.85));
+        return img;
+    }
+
     public void setEditCaptionEnabled(boolean en) {
         this.editingCaption = en;
 
@@ -249,7 +259,9 @@ public class ItemView extends ListCell<Photo> implements Observer {
     @Override
     public void update(Observable o, Object arg) {
         if (o == model) {
-            imageView.setImage(model.getThumbnail());
+            // Thumbnails are loaded lazily, only for rows being displayed.
+            Image thumbnail = model.requestThumbnail();
+            imageView.setImage(thumbnail != null ? thumbnail : placeholderImage);
             imageView.setRotate(model.getRotation());
 
             if (model.getOriginalDate() != null) {
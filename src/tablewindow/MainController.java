@@ -9,6 +9,7 @@ import javafx.beans.property.StringProperty;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.*;
+import javafx.geometry.Bounds;
 import javafx.scene.*;
 import javafx.scene.control.*;
 import javafx.scene.control.Alert.AlertType;
@@ -24,6 +25,7 @@ import java.util.function.Consumer;
 import java.io.*;
 import model.Database;
 import model.Photo;
+import model.TagQuery;
 import imagewindow.ImageWindowController;
 
 public class MainController implements Initializable, ItemController {
@@ -78,6 +80,26 @@ public class MainController implements Initializable, ItemController {
             System.out.println("FXML Error: " + e.toString());
             Main.exit();
         }
+
+        // ----
+
+        tagChooserWindow = new Popup();
+
+        try {
+            FXMLLoader loader = new FXMLLoader(getClass().getClassLoader().getResource("tablewindow/TagChooser.fxml"));
+            tagChooserWindow.getContent().add(loader.load());
+            tagChooserWindow.setAutoHide( true );
+            tagChooserWindow.setHideOnEscape( true );
+            tagChooserWindow.setOpacity(1.0);
+
+            tagChooserController = (TagChooserController)loader.getController();
+            tagChooserController.setParent(this);
+            tagChooserController.initEvents();
+        } catch (Exception e) {
+            // Fail hard
+            System.out.println("FXML Error: " + e.toString());
+            Main.exit();
+        }
     }
 
     // ----- Model -----
@@ -90,7 +112,8 @@ public class MainController implements Initializable, ItemController {
     @FXML Label messageLabel;
     @FXML AnchorPane menuBarPane;
     @FXML Button cancelFindTagButton;
-    @FXML MenuButton tagMenuButton;
+    @FXML Button tagChooserButton;
+    @FXML TextField queryField;
 
     // ----- Controller Hierarchy -----
     Stage imageWindow;
@@ -99,20 +122,55 @@ public class MainController implements Initializable, ItemController {
     Popup tagWindow;
     TagPopupController tagPopupController;
 
+    Popup tagChooserWindow;
+    TagChooserController tagChooserController;
+
     @FXML MenuController menuBarPaneController;
 
     // ----- Event handlers -----
 
-    @FXML private void onTagMenuButton(ActionEvent e) {
-        System.out.println("Event: tagMenuButton from "+e.getSource().toString());
+    @FXML private void onTagChooserButton(ActionEvent e) {
+        System.out.println("Event: onTagChooserButton");
 
-        if (e.getSource() instanceof MenuItem) {
-            MenuItem item = (MenuItem)e.getSource();
+        tagChooserController.reset();
+        Bounds bounds = tagChooserButton.localToScreen(tagChooserButton.getBoundsInLocal());
+        tagChooserWindow.show(getWindow(), bounds.getMinX(), bounds.getMaxY());
+    }
 
-            getDatabaseView().filterTag = item.getText();
-            tagMenuButton.setText(item.getText());
-            cancelFindTagButton.setVisible(true);
-            getDatabaseView().update(db,  null);
+    // Show only the photos with a tag, chosen from the tag chooser
+    void filterByTag(String tag) {
+        getDatabaseView().filterTag = tag;
+        tagChooserButton.setText(tag);
+        cancelFindTagButton.setVisible(true);
+        getDatabaseView().update(db,  null);
+    }
+
+    @FXML private void onQuery(ActionEvent e) {
+        System.out.println("Event: onQuery");
+
+        String text = queryField.getText().trim();
+        TagQuery query = null;
+        if (!text.isEmpty()) {
+            try {
+                query = TagQuery.parse(text);
+            } catch (TagQuery.SyntaxException ex) {
+                if (!queryField.getStyleClass().contains("query-error")) {
+                    queryField.getStyleClass().add("query-error");
+                }
+                getMessageProperty().set("Query: " + ex.getMessage());
+                return;
+            }
+        }
+        queryField.getStyleClass().remove("query-error");
+
+        long start = System.currentTimeMillis();
+        getDatabaseView().filterQuery = query;
+        getDatabaseView().update(db,  null);
+        if (query != null) {
+            getMessageProperty().set(getDatabaseView().rows.size() + " matches in " +
+                    (System.currentTimeMillis() - start) + " ms.");
+        } else {
+            getMessageProperty().set("Total = " + getDatabase().size() + " images.");
         }
     }
 
@@ -120,7 +178,7 @@ public class MainController implements Initializable, ItemController {
         System.out.println("Event: onCancelFindTagButton");
 
         getDatabaseView().filterTag = null;
-        tagMenuButton.setText("...");
+        tagChooserButton.setText("...");
         cancelFindTagButton.setVisible(false);
         getDatabaseView().update(db,  null);
     }
@@ -233,22 +291,6 @@ public class MainController implements Initializable, ItemController {
         }
     }
 
-    @FXML private void onTagMenuMouseEntered(MouseEvent e) {
-        System.out.println("Event: mouse entered");
-
-        ArrayList<MenuItem> menuItems = new ArrayList<MenuItem>();
-        for(String tag : getDatabase().getAllTags().keySet()) {
-            MenuItem item = new MenuItem(tag);
-            item.setOnAction(this::onTagMenuButton);
-            menuItems.add(item);
-        }
-
-        System.out.println("Adding " + menuItems.size() + " items");
-
-        tagMenuButton.getItems().clear();
-        tagMenuButton.getItems().addAll(menuItems);
-    }
-
     // ---- Actions ----
 
     public void deletePhoto() {
@@ -318,10 +360,32 @@ public class MainController implements Initializable, ItemController {
         listView.getSelectionModel().clearSelection();
     }
 
+    // Save in the background.
     public void save() {
-        try (FileOutputStream os = new FileOutputStream(Main.DB_FILE)) {
-            getDatabase().write(os);
-            getDatabase().clearChangedSinceSave();
+        Task<Long> task = new Task<Long>() {
+            @Override public Long call() throws IOException {
+                return getDatabase().save();
+            }
+        };
+
+        task.setOnSucceeded(e -> {
+            getMessageProperty().set("Saved in " + task.getValue() + " ms.");
+        });
+        task.setOnFailed(e -> {
+            System.out.println("Could not save: " + task.getException().toString());
+            Alert a = new Alert(AlertType.ERROR);
+            a.setContentText("Failed to save database");
+            a.showAndWait();
+        });
+
+        new Thread(task).start();
+    }
+
+    // Save before exiting, blocking until done.
+    public void saveAndWait() {
+        try {
+            long ms = getDatabase().save();
+            System.out.println("Saved in " + ms + " ms");
         } catch (IOException ex) {
             Alert a = new Alert(AlertType.ERROR);
             a.setContentText("Failed to save database");
@@ -338,12 +402,40 @@ public class MainController implements Initializable, ItemController {
         Task<Void> task = new Task<Void>() {
             @Override public Void call() {
 
-                try (FileInputStream is = new FileInputStream(dbFile)) {
-                    getDatabase().read(is, (String msg) -> { updateMessage(msg); });
+                if (getDatabase().getThumbnailStore() == null) {
+                    getDatabase().openThumbnailStore(Main.THUMB_FILE);
+                }
+
+                getDatabase().setSaveFiles(Main.getCatalogFile(), Main.BINARY_CATALOG,
+                        Main.SHARDED_CATALOG, Main.ROOTS_FILE);
+                getDatabase().setCompression(Main.CATALOG_COMPRESSION);
+                // Don't autosave over a catalog that couldn't be read
+                boolean loaded = !dbFile.exists();
+                try {
+                    if (dbFile.isDirectory()) {
+                        getDatabase().readShards(dbFile, (String msg) -> { updateMessage(msg); });
+                    } else {
+                        try (FileInputStream is = new FileInputStream(dbFile)) {
+                            getDatabase().read(is, (String msg) -> { updateMessage(msg); });
+                        }
+                    }
+                    loaded = true;
                 } catch (IOException ex) {
                     // Ignore
                     System.out.println("Could not read existing database: " + ex.toString());
                 }
+                getDatabase().openJournal(Main.JOURNAL_FILE);
+
+                try (FileInputStream is = new FileInputStream(Main.ROOTS_FILE)) {
+                    getDatabase().readSearchRoots(is);
+                } catch (IOException ex) {
+                    // Ignore
+                    System.out.println("Could not read search roots: " + ex.toString());
+                }
+
+                if (loaded) {
+                    getDatabase().startAutosave();
+                }
 
                 return null;
             }
@@ -2,10 +2,14 @@ package tablewindow;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.ResourceBundle;
 
 import application.Main;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
@@ -42,6 +46,7 @@ public class MenuController implements Initializable {
     @FXML MenuBar mainMenuBar;
     @FXML MenuItem removeMenuItem;
     @FXML MenuItem clearAllTagsMenuItem;
+    @FXML CheckMenuItem watchFoldersMenuItem;
     @FXML CheckMenuItem filterFavoritesMenuItem;
     @FXML CheckMenuItem filterMissingMenuItem;
     @FXML CheckMenuItem filterTaggedMenuItem;
@@ -49,6 +54,7 @@ public class MenuController implements Initializable {
     @FXML CheckMenuItem filterDuplicatedMenuItem;
     @FXML CheckMenuItem filterExtraCopiesMenuItem;
     @FXML CheckMenuItem filterHideExtrasMenuItem;
+    @FXML CheckMenuItem filterNearDuplicatesMenuItem;
 
     @FXML private void onQuitMenuItem(ActionEvent e) {
         System.out.println("Event: onQuitMenuItem");
@@ -64,7 +70,7 @@ public class MenuController implements Initializable {
             alert.showAndWait();
 
             if (alert.getResult() != ButtonType.YES) {
-                parent.save();
+                parent.saveAndWait();
             }
         }
 
@@ -122,11 +128,16 @@ public class MenuController implements Initializable {
     @FXML private void onGroupDuplicatedMenuItem(ActionEvent e) {
         System.out.println("Event: onGroupDuplicatedMenuItem");
         getDatabaseView().setSort((Photo x, Photo y) -> {
-            int xhash = x.getHash();
-            int yhash = y.getHash();
-            // Sort by hash
-            if (xhash != yhash) {
-                return xhash - yhash;
+            // Sort by size, then by contents.  Copies always have the same
+            // size, and photos with a unique size have no content hash.
+            int cmp = Long.compare(x.getFileSize(), y.getFileSize());
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = Objects.compare(x.getContentHash(), y.getContentHash(),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+            if (cmp != 0) {
+                return cmp;
             }
             // Sort by canonical copy
             if (x.getDb().isCanonicalCopy(x)) {
@@ -140,6 +151,11 @@ public class MenuController implements Initializable {
         });
     }
 
+    @FXML private void onGroupNearDuplicatesMenuItem(ActionEvent e) {
+        System.out.println("Event: onGroupNearDuplicatesMenuItem");
+        findNearDuplicates();
+    }
+
     @FXML private void onSortFavoritesMenuItem(ActionEvent e) {
         System.out.println("Event: onSortFavoritesMenuItem");
         getDatabaseView().setSort((Photo x, Photo y) -> {
@@ -226,6 +242,13 @@ public class MenuController implements Initializable {
         parent.deletePhoto();
     }
 
+    @FXML private void onMakeMainCopyMenuItem(ActionEvent e) {
+        System.out.println("Event: onMakeMainCopyMenuItem");
+        parent.applySelected( (Photo i) -> {
+            i.makeMainCopy();
+        });
+    }
+
     @FXML private void onOpenFilesMenuItem(ActionEvent e) {
         System.out.println("Event: onOpenFilesMenuItem");
 
@@ -255,6 +278,7 @@ public class MenuController implements Initializable {
         }
 
         parent.getDatabase().clear();
+        watchFoldersMenuItem.setSelected(false);
     }
 
     @FXML private void onUpdateMenuItem(ActionEvent e) {
@@ -263,6 +287,18 @@ public class MenuController implements Initializable {
         parent.getDatabase().refreshAll(parent.getMessageProperty());
     }
 
+    @FXML private void onRescanMenuItem(ActionEvent e) {
+        System.out.println("Event: onRescanMenuItem");
+
+        parent.getDatabase().rescan(parent.getMessageProperty());
+    }
+
+    @FXML private void onWatchFoldersMenuItem(ActionEvent e) {
+        System.out.println("Event: onWatchFoldersMenuItem");
+
+        parent.getDatabase().setWatching(watchFoldersMenuItem.isSelected());
+    }
+
     @FXML private void onFilterClearMenuItem(ActionEvent e) {
         // Unselect all menu items and reset DB view
         getDatabaseView().filterFavorites = false;
@@ -277,6 +313,8 @@ public class MenuController implements Initializable {
         filterExtraCopiesMenuItem.setSelected(false);
         getDatabaseView().filterHideExtraCopies = false;
         filterHideExtrasMenuItem.setSelected(false);
+        getDatabaseView().filterNearDuplicates = false;
+        filterNearDuplicatesMenuItem.setSelected(false);
 
         getDatabaseView().filterTagged = false;
         filterTaggedMenuItem.setSelected(false);
@@ -310,11 +348,50 @@ public class MenuController implements Initializable {
         if (filterHideExtrasMenuItem != e.getSource()) {
             filterHideExtrasMenuItem.setSelected(false);
         }
+        if (filterNearDuplicatesMenuItem != e.getSource()) {
+            filterNearDuplicatesMenuItem.setSelected(false);
+        }
         // Update DB view
         getDatabaseView().filterOnlyDuplicated  = filterDuplicatedMenuItem.isSelected();
         getDatabaseView().filterOnlyExtraCopies = filterExtraCopiesMenuItem.isSelected();
         getDatabaseView().filterHideExtraCopies = filterHideExtrasMenuItem.isSelected();
-        getDatabaseView().update();
+        getDatabaseView().filterNearDuplicates  = filterNearDuplicatesMenuItem.isSelected();
+        if (filterNearDuplicatesMenuItem.isSelected()) {
+            // Updates the view when done
+            findNearDuplicates();
+        } else {
+            getDatabaseView().update();
+        }
+    }
+
+    // Helper
+    // Find near duplicates in the background, then show them grouped together.
+    private void findNearDuplicates() {
+        Task<Map<Photo, Integer>> task = new Task<Map<Photo, Integer>>() {
+            @Override public Map<Photo, Integer> call() {
+                updateMessage("Finding near duplicates...");
+                return getDatabase().findNearDuplicates(Database.NEAR_DUPLICATE_DISTANCE);
+            }
+        };
+
+        parent.getMessageProperty().unbind();
+        parent.getMessageProperty().bind(task.messageProperty());
+
+        task.setOnSucceeded(ev -> {
+            Map<Photo, Integer> groups = task.getValue();
+            parent.getMessageProperty().unbind();
+            parent.getMessageProperty().set(groups.size() + " near duplicates.");
+
+            getDatabaseView().nearDuplicateGroups = groups;
+            getDatabaseView().setSort((Photo x, Photo y) -> {
+                // Photos without near duplicates last
+                return Integer.compare(
+                        groups.getOrDefault(x, Integer.MAX_VALUE),
+                        groups.getOrDefault(y, Integer.MAX_VALUE));
+            });
+        });
+
+        new Thread(task).start();
     }
 
     @FXML private void onFilterDuplicatedMenuItem(ActionEvent e) {
@@ -329,6 +406,10 @@ public class MenuController implements Initializable {
         doFilterDuplicatesRadioGroup(e);
     }
 
+    @FXML private void onFilterNearDuplicatesMenuItem(ActionEvent e) {
+        doFilterDuplicatesRadioGroup(e);
+    }
+
     // Helper
     private void doFilterTagsRadioGroup(ActionEvent e) {
         // Behave as a unselectable radio group
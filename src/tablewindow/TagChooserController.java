@@ -0,0 +1,109 @@
+package tablewindow;
+
+import java.net.URL;
+import java.util.ResourceBundle;
+
+import javafx.collections.FXCollections;
+import javafx.event.ActionEvent;
+import javafx.fxml.*;
+import javafx.scene.control.*;
+import javafx.scene.input.KeyCode;
+import javafx.scene.layout.AnchorPane;
+import javafx.stage.Window;
+import java.util.*;
+import model.Database;
+
+// A list of all the tags to filter by, narrowed as you type.  The list is
+// a ListView, which only makes cells for the rows on screen, over a view
+// of the database's prefix index, so opening and filtering it take about
+// the same time with twenty tags as with twenty thousand.
+public class TagChooserController implements Initializable {
+
+    @Override
+    public void initialize(URL location, ResourceBundle resources) {
+    }
+
+    // ----- Parent/Child Views -----
+    MainController parent;
+    public void setParent(MainController p) { parent = p; }
+
+    // ----- View Elements -----
+
+    @FXML AnchorPane rootPane;
+    @FXML TextField filterField;
+    @FXML ListView<String> tagList;
+
+    public void initEvents() {
+        filterField.textProperty().addListener((obs, oldText, newText) -> refresh());
+
+        // Down goes from the filter into the list
+        filterField.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.DOWN && !tagList.getItems().isEmpty()) {
+                tagList.requestFocus();
+                tagList.getSelectionModel().selectFirst();
+                e.consume();
+            }
+        });
+
+        tagList.setCellFactory(list -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String tag, boolean empty) {
+                super.updateItem(tag, empty);
+                if (empty || tag == null) {
+                    setText(null);
+                } else {
+                    setText(tag + " (" + getDatabase().getTagCount(tag) + ")");
+                }
+            }
+        });
+        tagList.setOnMouseClicked(e -> choose(tagList.getSelectionModel().getSelectedItem()));
+        tagList.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.ENTER) {
+                choose(tagList.getSelectionModel().getSelectedItem());
+                e.consume();
+            }
+        });
+    }
+
+    // Called before the chooser is shown, since tags may have changed.
+    public void reset() {
+        if (filterField.getText().isEmpty()) {
+            refresh();
+        } else {
+            filterField.clear();
+        }
+        filterField.requestFocus();
+    }
+
+    @FXML
+    public void onFilterField(ActionEvent e) {
+        // Enter picks the only match, or the first
+        if (!tagList.getItems().isEmpty()) {
+            choose(tagList.getItems().get(0));
+        }
+    }
+
+    // --- Helpers ---
+
+    private void refresh() {
+        List<String> tags = getDatabase().getTagsWithPrefix(filterField.getText().trim());
+        tagList.setItems(FXCollections.observableList(tags));
+        tagList.scrollTo(0);
+    }
+
+    private void choose(String tag) {
+        if (tag == null) {
+            return;
+        }
+        parent.filterByTag(tag);
+        getWindow().hide();
+    }
+
+    private Database getDatabase() {
+        return parent.getDatabase();
+    }
+
+    private Window getWindow() {
+        return rootPane.getScene().getWindow();
+    }
+}
@@ -13,6 +13,7 @@ import javafx.scene.*;
 import javafx.scene.control.*;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.image.Image;
+import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
@@ -47,8 +48,26 @@ public class TagPopupController implements Initializable {
     @FXML TextField addNewTagField;
 
     public void initEvents() {
+        // Complete the tag as it is typed
+        addNewTagField.textProperty().addListener((obs, oldText, newText) -> {
+            if (model != null) {
+                showSuggestions();
+            }
+        });
+
+        // Tab fills in the best completion
+        addNewTagField.addEventFilter(KeyEvent.KEY_PRESSED, e -> {
+            if (e.getCode() == KeyCode.TAB && !completions.isEmpty()) {
+                addNewTagField.setText(completions.get(0));
+                addNewTagField.end();
+                e.consume();
+            }
+        });
     }
 
+    // The tags matching what has been typed, best first
+    private List<String> completions = Collections.emptyList();
+
     public void setModel(Photo model) {
 
         this.model = model;
@@ -96,17 +115,56 @@ public class TagPopupController implements Initializable {
             curTags.getChildren().add(hbox);
         }
 
+        // Clearing the field shows the suggestions
+        if (addNewTagField.getText().isEmpty()) {
+            showSuggestions();
+        } else {
+            addNewTagField.clear();
+        }
+    }
+
+    private void showSuggestions() {
         newTags.getChildren().clear();
-        List<String> topTags = parent.getDatabase().getTopTags(5);
-        // Don't suggest tags we already have
-        for(String tag: model.getTags()) {
-            topTags.remove(tag);
+        Database db = parent.getDatabase();
+        // Ask for extra, since tags we already have aren't suggested
+        int num = NUM_SUGGESTIONS + model.getTags().size();
+
+        String prefix = addNewTagField.getText().trim();
+        if (!prefix.isEmpty()) {
+            completions = suggestions(db.completeTag(prefix, num), Collections.emptyList());
+            addSuggestions("Matching tags...", completions);
+            return;
         }
-        if (!topTags.isEmpty()) {
+        completions = Collections.emptyList();
+
+        List<String> recentTags = suggestions(db.getRecentTags(num), Collections.emptyList());
+        addSuggestions("Recent tags...", recentTags);
+        addSuggestions("Frequent tags...", suggestions(db.getTopTags(num + recentTags.size()), recentTags));
+    }
+
+    static final int NUM_SUGGESTIONS = 5;
+
+    // Up to NUM_SUGGESTIONS tags, skipping those the photo has and those
+    // already suggested
+    private List<String> suggestions(List<String> ranked, List<String> shown) {
+        List<String> rsl = new ArrayList<String>();
+        for(String tag : ranked) {
+            if (rsl.size() >= NUM_SUGGESTIONS) {
+                break;
+            }
+            if (!model.hasTag(tag) && !shown.contains(tag)) {
+                rsl.add(tag);
+            }
+        }
+        return rsl;
+    }
+
+    private void addSuggestions(String title, List<String> tags) {
+        if (!tags.isEmpty()) {
             newTags.getChildren().add(new Separator(Orientation.HORIZONTAL));
-            newTags.getChildren().add(new Label("Recent tags..."));
+            newTags.getChildren().add(new Label(title));
         }
-        for (String tag : topTags) {
+        for (String tag : tags) {
             HBox hbox = new HBox();
             hbox.setSpacing(5);
 